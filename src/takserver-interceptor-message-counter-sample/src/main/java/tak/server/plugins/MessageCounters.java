@@ -0,0 +1,194 @@
+package tak.server.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+/**
+ * Counts messages by CoT type, by group and by source, the client that sent the message. Each count is a
+ * {@link LongAdder}, which spreads concurrent increments over several cells instead of one contended variable, and
+ * looking up the count of a known key does not lock, so counting does not serialize the threads calling it.
+ *
+ * <p>Each dimension keeps up to maxKeys keys, messages with keys beyond those are counted under {@link #OTHER}, so a
+ * flood of distinct types or clients cannot use up memory.
+ */
+public class MessageCounters {
+
+	public static final String NONE = "(none)";
+	public static final String OTHER = "(other)";
+
+	/**
+	 * Counts at one point in time, each dimension sorted by key.
+	 */
+	public static class Snapshot {
+
+		private final long time;
+		private final long total;
+		private final Map<String, Long> types;
+		private final Map<String, Long> groups;
+		private final Map<String, Long> sources;
+
+		private Snapshot(long time, long total, Map<String, Long> types, Map<String, Long> groups,
+				Map<String, Long> sources) {
+			this.time = time;
+			this.total = total;
+			this.types = types;
+			this.groups = groups;
+			this.sources = sources;
+		}
+
+		/**
+		 * @return when the snapshot was taken, in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public Map<String, Long> getTypes() {
+			return types;
+		}
+
+		public Map<String, Long> getGroups() {
+			return groups;
+		}
+
+		public Map<String, Long> getSources() {
+			return sources;
+		}
+
+		/**
+		 * @return the counts as a JSON object
+		 */
+		public String toJson() {
+			StringBuilder json = new StringBuilder("{\"time\":").append(time).append(",\"total\":").append(total);
+			appendJson(json, "types", types);
+			appendJson(json, "groups", groups);
+			appendJson(json, "sources", sources);
+			return json.append('}').toString();
+		}
+
+		private static void appendJson(StringBuilder json, String name, Map<String, Long> counts) {
+			json.append(",\"").append(name).append("\":{");
+			boolean first = true;
+			for (Map.Entry<String, Long> count : counts.entrySet()) {
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				appendJsonString(json, count.getKey());
+				json.append(':').append(count.getValue());
+			}
+			json.append('}');
+		}
+
+		private static void appendJsonString(StringBuilder json, String value) {
+			json.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					json.append('\\').append(c);
+				} else if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+			json.append('"');
+		}
+
+		/**
+		 * @return a one line summary, with the most frequent keys of each dimension
+		 */
+		public String summary(int topKeys) {
+			return "total: " + total + " types: " + top(types, topKeys) + " groups: " + top(groups, topKeys)
+					+ " sources: " + top(sources, topKeys);
+		}
+
+		private static String top(Map<String, Long> counts, int topKeys) {
+			List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+			entries.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+			StringBuilder builder = new StringBuilder("[");
+			for (int i = 0; i < Math.min(topKeys, entries.size()); i++) {
+				if (i > 0) {
+					builder.append(", ");
+				}
+				builder.append(entries.get(i).getKey()).append(": ").append(entries.get(i).getValue());
+			}
+			if (entries.size() > topKeys) {
+				builder.append(", ... ").append(entries.size() - topKeys).append(" more");
+			}
+			return builder.append(']').toString();
+		}
+	}
+
+	private final int maxKeys;
+	private final LongAdder total = new LongAdder();
+	private final Map<String, LongAdder> types = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> groups = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> sources = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxKeys keys kept per dimension, beyond which messages are counted under {@link #OTHER}
+	 */
+	public MessageCounters(int maxKeys) {
+		if (maxKeys < 1) {
+			throw new IllegalArgumentException("max keys must be positive: " + maxKeys);
+		}
+		this.maxKeys = maxKeys;
+	}
+
+	public void count(Message message) {
+		total.increment();
+		counter(types, message.getPayload().getCotEvent().getType()).increment();
+		if (message.getGroupsCount() == 0) {
+			counter(groups, NONE).increment();
+		}
+		for (int i = 0; i < message.getGroupsCount(); i++) {
+			counter(groups, message.getGroups(i)).increment();
+		}
+		counter(sources, message.getClientId()).increment();
+	}
+
+	private LongAdder counter(Map<String, LongAdder> counters, String key) {
+		if (key.isEmpty()) {
+			key = NONE;
+		}
+		LongAdder counter = counters.get(key);
+		if (counter != null) {
+			return counter;
+		}
+		// the size is checked before adding, so concurrent first messages may add a few keys over the limit
+		if (counters.size() >= maxKeys) {
+			key = OTHER;
+		}
+		return counters.computeIfAbsent(key, k -> new LongAdder());
+	}
+
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * Reads the counts without stopping the threads counting, so counts taken while messages are counted may be off by
+	 * the messages in progress.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(System.currentTimeMillis(), total.sum(), sums(types), sums(groups), sums(sources));
+	}
+
+	private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+		Map<String, Long> sums = new TreeMap<>();
+		counters.forEach((key, counter) -> sums.put(key, counter.sum()));
+		return Collections.unmodifiableMap(sums);
+	}
+}
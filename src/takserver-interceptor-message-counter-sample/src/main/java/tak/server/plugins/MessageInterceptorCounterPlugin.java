@@ -7,21 +7,43 @@ import org.slf4j.LoggerFactory;
 import java.lang.invoke.MethodHandles;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 /**
- * Intercepts messages and adds a counter to its xml detail
+ * Intercepts messages and adds a counter to its xml detail. Also counts the messages by CoT type, group and source,
+ * logs a summary of the counts periodically, and returns them as JSON through the plugin data API.
  */
 @TakServerPlugin(name="Message Interceptor Counter Plugin", description="This plugin will intercept messages, and mark them with an atomic counter of messages intercepted")
 public class MessageInterceptorCounterPlugin extends MessageInterceptorBase {
 
 	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+	private static final DetailAugmenter messageCountDetail = new DetailAugmenter("messageCount");
+
+	private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
+
+	private static final long DEFAULT_SUMMARY_INTERVAL = 60;
+	private static final int DEFAULT_MAX_COUNTER_KEYS = 1000;
+	private static final int SUMMARY_TOP_KEYS = 10;
+
 	private Set<String> inputGroups = null;
 	private Set<String> outputGroups = null;
 	
-	private final AtomicInteger testCounter = new AtomicInteger();
+	private final AtomicLong messageNumber = new AtomicLong();
+
+	private final MessageCounters counters;
+	private final long summaryInterval; // summary logging interval (s), 0 to disable
+	private ScheduledFuture<?> future;
+
+	private final InterceptorLatencyMonitor latency;
+	private final UnaryOperator<Message> counter = this::count;
 
 	@SuppressWarnings("unchecked")
 	public MessageInterceptorCounterPlugin() {
@@ -33,6 +55,33 @@ public class MessageInterceptorCounterPlugin extends MessageInterceptorBase {
 		    outputGroups = new HashSet<>((List<String>) config.getProperty("outputGroups"));
 		}
 
+		int maxCounterKeys = DEFAULT_MAX_COUNTER_KEYS;
+		if (config.containsProperty("maxCounterKeys")) {
+			maxCounterKeys = (int) config.getProperty("maxCounterKeys");
+		}
+		counters = new MessageCounters(maxCounterKeys);
+
+		if (config.containsProperty("summaryInterval")) {
+			summaryInterval = (int) config.getProperty("summaryInterval");
+		} else {
+			summaryInterval = DEFAULT_SUMMARY_INTERVAL;
+		}
+
+		long latencyBudgetMicros = 0;
+		long latencyWindowMs = InterceptorLatencyMonitor.DEFAULT_WINDOW_MS;
+		int latencyProbeInterval = InterceptorLatencyMonitor.DEFAULT_PROBE_INTERVAL;
+		if (config.containsProperty("latencyBudgetMicros")) {
+			latencyBudgetMicros = (int) config.getProperty("latencyBudgetMicros");
+		}
+		if (config.containsProperty("latencyWindowMs")) {
+			latencyWindowMs = (int) config.getProperty("latencyWindowMs");
+		}
+		if (config.containsProperty("latencyProbeInterval")) {
+			latencyProbeInterval = (int) config.getProperty("latencyProbeInterval");
+		}
+		latency = new InterceptorLatencyMonitor(getClass().getSimpleName(), latencyBudgetMicros, latencyWindowMs,
+				latencyProbeInterval);
+
 		logger.info("Properties: {}", config.getProperties());
 	}
 
@@ -41,28 +90,37 @@ public class MessageInterceptorCounterPlugin extends MessageInterceptorBase {
 
 		logger.info("Starting {}", getClass().getName());
 
+		if (summaryInterval > 0) {
+			future = worker.scheduleWithFixedDelay(() -> logger.info("Message counts - {}",
+					counters.snapshot().summary(SUMMARY_TOP_KEYS)), summaryInterval, summaryInterval, TimeUnit.SECONDS);
+		}
+
 	}
 
 	/**
-	 * Intercepts a message and adds a counter to the xml detail
+	 * Intercepts a message and adds a counter to the xml detail, unless the plugin is bypassed for exceeding its latency
+	 * budget
 	 *
 	 * @param message the intercepted message to be modified
 	 * @return the intercepted message with counter appended to its xml detail
 	 */
 	@Override
 	public Message intercept(Message message) {
+		// counted even while the interceptor is bypassed
+		counters.count(message);
+		return latency.intercept(message, counter);
+	}
+
+	private Message count(Message message) {
 
-		testCounter.incrementAndGet();
+		// the number of this message, read once so concurrent messages cannot change it
+		long number = messageNumber.incrementAndGet();
 
 		if (logger.isDebugEnabled()) {
-			logger.debug("Got message #{} from queue", testCounter.get());
+			logger.debug("Got message #{} from queue", number);
 		}
-		Message.Builder mb = message.toBuilder();
-
-		String xmlDetail = mb.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().getXmlDetail();
-		xmlDetail += "<messageCount>" + testCounter.get() + "</messageCount>"; 
-		mb.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().clearXmlDetail();
-		mb.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().setXmlDetail(xmlDetail);  // inject the counter value into the message
+		// inject the counter value into the message
+		Message.Builder mb = messageCountDetail.toBuilder(message, number);
 		// provenance will be used to prevent loops
 		mb.addProvenance(getClass().getName());
 		
@@ -74,9 +132,30 @@ public class MessageInterceptorCounterPlugin extends MessageInterceptorBase {
 
 	}
 
+	/**
+	 * Returns the message counts by CoT type, group and source, as JSON.
+	 *
+	 * @param allRequestParams not used
+	 * @param contentType not used, the response is always "application/json"
+	 * @return the plugin response containing the counts
+	 */
+	@Override
+	public PluginResponse onRequestData(Map<String, String> allRequestParams, String contentType) {
+
+		PluginResponse result = new PluginResponse();
+		result.setData(counters.snapshot().toJson());
+		result.setContentType("application/json");
+		return result;
+	}
+
 	@Override
 	public void stop() {
 
+		if (future != null) {
+			future.cancel(true);
+		}
+		logger.info("Stopped {} - message counts - {}", getClass().getName(), counters.snapshot().summary(SUMMARY_TOP_KEYS));
+		logger.info("{}", latency);
 	}
 
 }
@@ -0,0 +1,123 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCountersTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    @Test
+    public void shouldCountByTypeGroupAndSource() {
+        MessageCounters counters = new MessageCounters(100);
+        counters.count(message("a-f-G-U-C", "client-1", "alpha"));
+        counters.count(message("a-f-G-U-C", "client-2", "alpha", "bravo"));
+        counters.count(message("b-t-f", "", "bravo"));
+        counters.count(message("b-t-f", "client-1"));
+
+        MessageCounters.Snapshot snapshot = counters.snapshot();
+        assertEquals(4, snapshot.getTotal());
+        assertEquals(Map.of("a-f-G-U-C", 2L, "b-t-f", 2L), snapshot.getTypes());
+        assertEquals(Map.of("alpha", 2L, "bravo", 2L, MessageCounters.NONE, 1L), snapshot.getGroups());
+        assertEquals(Map.of("client-1", 2L, "client-2", 1L, MessageCounters.NONE, 1L), snapshot.getSources());
+    }
+
+    @Test
+    public void keysBeyondLimitShouldBeCountedAsOther() {
+        MessageCounters counters = new MessageCounters(2);
+        for (int i = 0; i < 5; i++) {
+            counters.count(message("a-f-G", "client-" + i));
+        }
+
+        assertEquals(Map.of("client-0", 1L, "client-1", 1L, MessageCounters.OTHER, 3L), counters.snapshot().getSources());
+    }
+
+    @Test
+    public void snapshotShouldRenderJsonAndSummary() {
+        MessageCounters counters = new MessageCounters(100);
+        counters.count(message("a-f-G", "uid \"1\"", "alpha"));
+        counters.count(message("a-f-G", "uid \"1\"", "alpha"));
+        counters.count(message("b-t-f", "uid \"1\"", "bravo"));
+
+        String json = counters.snapshot().toJson();
+        assertTrue(json, json.endsWith(",\"total\":3,\"types\":{\"a-f-G\":2,\"b-t-f\":1},\"groups\":{\"alpha\":2,\"bravo\":1},\"sources\":{\"uid \\\"1\\\"\":3}}"));
+        assertEquals("total: 3 types: [a-f-G: 2, ... 1 more] groups: [alpha: 2, ... 1 more] sources: [uid \"1\": 3]",
+                counters.snapshot().summary(1));
+    }
+
+    /**
+     * Measures the messages counted per second by threads sharing one set of counters, from 1 to 8 threads, with the
+     * increments per second of a shared AtomicLong and of a shared LongAdder alongside. Threads incrementing one atomic
+     * variable take turns on its cache line, so on a machine with several cores its rate stops growing with threads,
+     * while the rates of the striped counters keep growing.
+     */
+    @Test
+    public void benchmarkCountingThroughput() throws Exception {
+        MessageCounters counters = new MessageCounters(100);
+        AtomicLong atomic = new AtomicLong();
+        LongAdder adder = new LongAdder();
+        Message message = message("a-f-G-U-C", "client-1", "alpha");
+
+        // warm up
+        perSecond(8, counters::count, message);
+        StringBuilder results = new StringBuilder();
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            results.append(' ').append(threads).append(" threads: ")
+                    .append(perSecond(threads, counters::count, message)).append(" messages counted, ")
+                    .append(perSecond(threads, m -> atomic.incrementAndGet(), message)).append(" AtomicLong, ")
+                    .append(perSecond(threads, m -> adder.increment(), message)).append(" LongAdder;");
+        }
+
+        logger.info("per second -{}", results);
+        assertTrue(counters.getTotal() > 0);
+    }
+
+    private static long perSecond(int threads, Consumer<Message> count, Message message) throws Exception {
+        long durationMs = 200;
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long[] counted = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    count.accept(message);
+                    counted[index]++;
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers.get(t).join();
+            total += counted[t];
+        }
+        return total * 1000 / durationMs;
+    }
+
+    private static Message message(String type, String clientId, String... groups) {
+        return Message.newBuilder()
+                .setPayload(TakMessage.newBuilder().setCotEvent(CotEvent.newBuilder().setType(type)))
+                .setClientId(clientId)
+                .addAllGroups(Arrays.asList(groups))
+                .build();
+    }
+}
@@ -5,7 +5,12 @@ import org.dom4j.DocumentException;
 import org.junit.Test;
 import tak.server.plugins.messaging.MessageConverter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.*;
 
@@ -36,6 +41,38 @@ public class MessageInterceptorCounterPluginTest {
         assertEquals("<messageCount>2</messageCount>", secondMessage.getPayload().getCotEvent().getDetail().getXmlDetail());
     }
 
+    @Test
+    public void concurrentInterceptsShouldInjectDistinctCounts() throws Exception {
+        Message message = createMessage();
+        Set<String> details = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 250; i++) {
+                    details.add(plugin.intercept(message).getPayload().getCotEvent().getDetail().getXmlDetail());
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1000, details.size());
+        assertTrue(details.contains("<messageCount>1000</messageCount>"));
+    }
+
+    @Test
+    public void requestDataShouldReturnCounts() throws DocumentException {
+        plugin.intercept(createMessage());
+        plugin.intercept(createMessage());
+
+        PluginResponse response = plugin.onRequestData(new HashMap<>(), "application/json");
+
+        assertEquals("application/json", response.getContentType());
+        assertTrue(response.getData(), response.getData().contains("\"total\":2,\"types\":{\"a-f-G-U-C\":2}"));
+    }
+
     @Test(expected = NullPointerException.class)
     public void interceptNullMessageShouldThrowException() {
         plugin.intercept(null);
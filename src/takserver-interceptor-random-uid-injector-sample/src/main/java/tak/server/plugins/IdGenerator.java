@@ -0,0 +1,121 @@
+package tak.server.plugins;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the IDs injected into messages, in the UUID format. {@link UUID#randomUUID()} draws from one
+ * {@link java.security.SecureRandom} shared by every thread, so under load the interceptor threads queue up on it. The
+ * other generators keep their state per thread, so they do not contend.
+ */
+public interface IdGenerator {
+
+	UUID next();
+
+	/**
+	 * @param value generator name from the plugin configuration
+	 * @param nodeId ID of this TAK Server node, used by the node sequence generator, from 0 to 4095
+	 */
+	static IdGenerator fromConfig(String value, int nodeId) {
+		if (value == null) {
+			return new SecureRandomIdGenerator();
+		}
+		switch (value.toLowerCase()) {
+		case "securerandom":
+			return new SecureRandomIdGenerator();
+		case "threadlocalrandom":
+			return new ThreadLocalRandomIdGenerator();
+		case "timeordered":
+			return new TimeOrderedIdGenerator();
+		case "nodesequence":
+			return new NodeSequenceIdGenerator(nodeId);
+		default:
+			throw new IllegalArgumentException("unknown id generator: " + value);
+		}
+	}
+
+	/**
+	 * Random (version 4) UUIDs from a cryptographically strong generator shared by all threads, as
+	 * {@link UUID#randomUUID()}. Use when the IDs must not be predictable.
+	 */
+	class SecureRandomIdGenerator implements IdGenerator {
+
+		@Override
+		public UUID next() {
+			return UUID.randomUUID();
+		}
+	}
+
+	/**
+	 * Random (version 4) UUIDs from each thread's {@link ThreadLocalRandom}. As unique as secure random UUIDs, but
+	 * predictable from earlier IDs.
+	 */
+	class ThreadLocalRandomIdGenerator implements IdGenerator {
+
+		@Override
+		public UUID next() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long msb = random.nextLong() & ~0xf000L | 0x4000L;
+			long lsb = random.nextLong() & ~(3L << 62) | (2L << 62);
+			return new UUID(msb, lsb);
+		}
+	}
+
+	/**
+	 * Time ordered UUIDs, as version 7 UUIDs: the Unix time in milliseconds, then a 12 bit counter within the
+	 * millisecond, then 62 random bits. IDs sort by the time they were generated, to the millisecond, and the IDs of
+	 * each thread are strictly increasing. A thread generating more than 4096 IDs in a millisecond borrows from the next
+	 * millisecond.
+	 */
+	class TimeOrderedIdGenerator implements IdGenerator {
+
+		// last time and counter of each thread, as the 48 bit time followed by the 12 bit counter
+		private final ThreadLocal<long[]> last = ThreadLocal.withInitial(() -> new long[1]);
+
+		@Override
+		public UUID next() {
+			long[] state = last.get();
+			long timeAndCounter = Math.max(System.currentTimeMillis() << 12, state[0] + 1);
+			state[0] = timeAndCounter;
+
+			long msb = (timeAndCounter >>> 12) << 16 | 0x7000L | (timeAndCounter & 0xfff);
+			long lsb = ThreadLocalRandom.current().nextLong() & ~(3L << 62) | (2L << 62);
+			return new UUID(msb, lsb);
+		}
+	}
+
+	/**
+	 * Sequential UUIDs, in the version 8 (custom) format: the time the generator was created in milliseconds, then the
+	 * node ID, then a 62 bit sequence number. IDs are unique across nodes with distinct IDs and restarts more than a
+	 * millisecond apart, and short to compress, but reveal the message rate. Each thread takes blocks of sequence
+	 * numbers from a shared counter, so threads only contend once per block.
+	 */
+	class NodeSequenceIdGenerator implements IdGenerator {
+
+		private static final int BLOCK = 1024;
+
+		private final long msb;
+		private final AtomicLong nextBlock = new AtomicLong();
+		// next sequence number of each thread, and the end of its block
+		private final ThreadLocal<long[]> block = ThreadLocal.withInitial(() -> new long[2]);
+
+		public NodeSequenceIdGenerator(int nodeId) {
+			if (nodeId < 0 || nodeId > 0xfff) {
+				throw new IllegalArgumentException("node id must be from 0 to 4095: " + nodeId);
+			}
+			msb = System.currentTimeMillis() << 16 | 0x8000L | nodeId;
+		}
+
+		@Override
+		public UUID next() {
+			long[] state = block.get();
+			if (state[0] == state[1]) {
+				state[0] = nextBlock.getAndAdd(BLOCK);
+				state[1] = state[0] + BLOCK;
+			}
+			long sequence = state[0]++;
+			return new UUID(msb, sequence & ~(3L << 62) | (2L << 62));
+		}
+	}
+}
@@ -8,7 +8,7 @@ import java.lang.invoke.MethodHandles;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
+import java.util.function.UnaryOperator;
 
 /**
  * Plugin that intercepts a message and injects a random UUID into its message detail.
@@ -18,9 +18,16 @@ public class MessageInterceptorUuidInjectorPlugin extends MessageInterceptorBase
 
 	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+	private static final DetailAugmenter uuidDetail = new DetailAugmenter("myUuid");
+
 	private Set<String> inputGroups = null;
 	private Set<String> outputGroups = null;
 
+	private final IdGenerator idGenerator;
+
+	private final InterceptorLatencyMonitor latency;
+	private final UnaryOperator<Message> injector = this::injectUuid;
+
 	@SuppressWarnings("unchecked")
 	public MessageInterceptorUuidInjectorPlugin() {
 
@@ -32,6 +39,31 @@ public class MessageInterceptorUuidInjectorPlugin extends MessageInterceptorBase
 		    outputGroups = new HashSet<>((List<String>) config.getProperty("outputGroups"));
 		}
 
+		String idGeneratorType = null;
+		int nodeId = 0;
+		if (config.containsProperty("idGenerator")) {
+			idGeneratorType = (String) config.getProperty("idGenerator");
+		}
+		if (config.containsProperty("nodeId")) {
+			nodeId = (int) config.getProperty("nodeId");
+		}
+		idGenerator = IdGenerator.fromConfig(idGeneratorType, nodeId);
+
+		long latencyBudgetMicros = 0;
+		long latencyWindowMs = InterceptorLatencyMonitor.DEFAULT_WINDOW_MS;
+		int latencyProbeInterval = InterceptorLatencyMonitor.DEFAULT_PROBE_INTERVAL;
+		if (config.containsProperty("latencyBudgetMicros")) {
+			latencyBudgetMicros = (int) config.getProperty("latencyBudgetMicros");
+		}
+		if (config.containsProperty("latencyWindowMs")) {
+			latencyWindowMs = (int) config.getProperty("latencyWindowMs");
+		}
+		if (config.containsProperty("latencyProbeInterval")) {
+			latencyProbeInterval = (int) config.getProperty("latencyProbeInterval");
+		}
+		latency = new InterceptorLatencyMonitor(getClass().getSimpleName(), latencyBudgetMicros, latencyWindowMs,
+				latencyProbeInterval);
+
 		logger.info("Properties: {}", config.getProperties());
 	}
 
@@ -42,28 +74,29 @@ public class MessageInterceptorUuidInjectorPlugin extends MessageInterceptorBase
 	}
 
 	/**
-	 * Intercepts a message and injects a random UUID into the xml message detail
+	 * Intercepts a message and injects a UUID from the configured {@link IdGenerator} into the xml message detail, unless
+	 * the plugin is bypassed for exceeding its latency budget
 	 *
-	 * @param message the intercepted message to inject with a random UUID
-	 * @return the modified message with random UUID in its xml detail
+	 * @param message the intercepted message to inject with a UUID
+	 * @return the modified message with a UUID in its xml detail
 	 */
 	@Override
 	public Message intercept(Message message) {
-		Message.Builder mb = message.toBuilder();
-
-		 String xmlDetail = mb.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().getXmlDetail();
-         xmlDetail += "<myUuid>" + UUID.randomUUID() + "</myUuid>";
-         mb.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().clearXmlDetail();
-         mb.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().setXmlDetail(xmlDetail);
-         // provenance will be used to prevent loops
-         mb.addProvenance(MessageInterceptorUuidInjectorPlugin.class.getName());
-		
- 		return mb.build();
+		return latency.intercept(message, injector);
+	}
+
+	private Message injectUuid(Message message) {
+		Message.Builder mb = uuidDetail.toBuilder(message, idGenerator.next().toString());
+		// provenance will be used to prevent loops
+		mb.addProvenance(MessageInterceptorUuidInjectorPlugin.class.getName());
+
+		return mb.build();
 	}
 
 	@Override
 	public void stop() {
 
+		logger.info("Stopped {} - {}", getClass().getName(), latency);
 	}
 
 }
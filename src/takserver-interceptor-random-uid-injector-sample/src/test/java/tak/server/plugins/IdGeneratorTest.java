@@ -0,0 +1,146 @@
+package tak.server.plugins;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdGeneratorTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String[] TYPES = { "secureRandom", "threadLocalRandom", "timeOrdered", "nodeSequence" };
+
+    @Test
+    public void generatorsShouldSetVersionAndVariant() {
+        int[] versions = { 4, 4, 7, 8 };
+        for (int i = 0; i < TYPES.length; i++) {
+            IdGenerator generator = IdGenerator.fromConfig(TYPES[i], 42);
+            for (int j = 0; j < 1000; j++) {
+                UUID id = generator.next();
+                assertEquals(TYPES[i], versions[i], id.version());
+                assertEquals(TYPES[i], 2, id.variant());
+            }
+        }
+    }
+
+    @Test
+    public void timeOrderedIdsShouldIncreaseAndCarryTime() {
+        IdGenerator generator = IdGenerator.fromConfig("timeOrdered", 0);
+        long before = System.currentTimeMillis();
+        UUID previous = generator.next();
+        // more than 4096 per millisecond, so the counter overflows into the time
+        for (int i = 0; i < 100000; i++) {
+            UUID id = generator.next();
+            assertTrue(Long.compareUnsigned(id.getMostSignificantBits(), previous.getMostSignificantBits()) > 0);
+            previous = id;
+        }
+        long time = previous.getMostSignificantBits() >>> 16;
+        assertTrue(time >= before && time <= System.currentTimeMillis() + 100);
+    }
+
+    @Test
+    public void nodeSequenceIdsShouldBeUniqueAcrossThreads() throws Exception {
+        IdGenerator generator = IdGenerator.fromConfig("nodeSequence", 4095);
+        Set<UUID> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    ids.add(generator.next());
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80000, ids.size());
+        assertEquals(4095, ids.iterator().next().getMostSignificantBits() & 0xfff);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeIdShouldFitInTwelveBits() {
+        IdGenerator.fromConfig("nodeSequence", 4096);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownGeneratorShouldBeRejected() {
+        IdGenerator.fromConfig("snowflake", 0);
+    }
+
+    /**
+     * Measures the IDs per second of each generator, with the IDs formatted as the interceptor does, from 1 thread up to
+     * twice the available processors, at least 8. Threads using the secure random generator take turns on its lock, so
+     * its throughput stops growing with threads well before the cores run out, while the other generators share no
+     * state between threads and scale with the cores. Threads beyond the available processors share them, so the
+     * results are logged with the processor count, and scaling only shows up to it.
+     */
+    @Test
+    public void benchmarkThroughputByThreads() throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int maxThreads = Math.max(8, 2 * processors);
+        Set<Integer> threadCounts = new TreeSet<>();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        for (String type : TYPES) {
+            IdGenerator generator = IdGenerator.fromConfig(type, 0);
+            // warm up
+            idsPerSecond(generator, maxThreads, 300);
+            StringBuilder results = new StringBuilder();
+            for (int threads : threadCounts) {
+                results.append(' ').append(threads).append(" threads: ").append(idsPerSecond(generator, threads, 300));
+            }
+            logger.info("{} ids per second on {} processors -{}", type, processors, results);
+        }
+    }
+
+    private static long idsPerSecond(IdGenerator generator, int threads, long durationMs) throws Exception {
+        LongAdder generated = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] end = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                long length = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end[0]) {
+                    length += generator.next().toString().length();
+                    count++;
+                }
+                assertTrue(length > 0);
+                generated.add(count);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        end[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return generated.sum() * 1000 / durationMs;
+    }
+}
@@ -0,0 +1,90 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Partitions records keyed by CoT UID. Keys are hashed the same way as the Kafka default partitioner, so every update of
+ * a track lands on the same partition. Records of configured heavy emitters are instead spread round-robin over a small
+ * range of partitions starting at their hashed partition, so one busy UID does not make a hot partition. Ordering is
+ * not preserved for those UIDs.
+ *
+ * <p>Records without a key are delegated to the default partitioner.
+ */
+public class CotUidPartitioner implements Partitioner {
+
+    /** Comma-separated UIDs to spread over several partitions */
+    public static final String HOT_UIDS_CONFIG = "tak.partitioner.hot.uids";
+
+    /** Number of partitions each hot UID is spread over */
+    public static final String HOT_UID_SPREAD_CONFIG = "tak.partitioner.hot.spread";
+
+    /** Separator between UID and type in keys that include the CoT type */
+    public static final char KEY_SEPARATOR = '|';
+
+    private Set<String> hotUids = Collections.emptySet();
+    private int hotUidSpread = 1;
+    private final ConcurrentMap<String, AtomicInteger> hotUidCounters = new ConcurrentHashMap<>();
+    private final DefaultPartitioner defaultPartitioner = new DefaultPartitioner();
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object uids = configs.get(HOT_UIDS_CONFIG);
+        if (uids != null && !uids.toString().isEmpty()) {
+            hotUids = new HashSet<>(Arrays.asList(uids.toString().split(",")));
+        }
+
+        Object spread = configs.get(HOT_UID_SPREAD_CONFIG);
+        if (spread != null) {
+            hotUidSpread = Integer.parseInt(spread.toString());
+        }
+
+        defaultPartitioner.configure(configs);
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        if (keyBytes == null) {
+            return defaultPartitioner.partition(topic, key, keyBytes, value, valueBytes, cluster);
+        }
+
+        int numPartitions = cluster.partitionsForTopic(topic).size();
+        int partition = Utils.toPositive(Utils.murmur2(keyBytes)) % numPartitions;
+
+        if (hotUidSpread > 1 && !hotUids.isEmpty()) {
+            String uid = uid(key.toString());
+            if (hotUids.contains(uid)) {
+                int offset = hotUidCounters.computeIfAbsent(uid, k -> new AtomicInteger()).getAndIncrement();
+                partition = (partition + Math.floorMod(offset, Math.min(hotUidSpread, numPartitions))) % numPartitions;
+            }
+        }
+
+        return partition;
+    }
+
+    @Override
+    public void onNewBatch(String topic, Cluster cluster, int prevPartition) {
+        defaultPartitioner.onNewBatch(topic, cluster, prevPartition);
+    }
+
+    @Override
+    public void close() {
+        defaultPartitioner.close();
+    }
+
+    private static String uid(String key) {
+        int separator = key.indexOf(KEY_SEPARATOR);
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+}
@@ -1,43 +1,190 @@
 package tak.server.plugins;
 
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
-import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Polls one Kafka consumer. Several of these can run in the same consumer group, in which case Kafka divides the
+ * topic partitions between them.
+ *
+ * <p>The callback receives records in batches: without decode workers, all records of a poll, and with decode workers,
+ * the records of one partition from a poll. A record callback is run for each record of the batch in turn.
+ *
+ * <p>With decode workers, polled records are handed off to the workers, which run the callback. Records of a partition
+ * always go to the same worker, so they are processed in order. When the number of queued records reaches the high
+ * watermark, the consumer pauses its partitions but keeps polling, so the group does not see it as failed while the
+ * workers catch up. Partitions are resumed once the queue has drained to the low watermark. Each worker's queue also holds
+ * at most high watermark batches, if it is full the polling thread waits for the worker.
+ *
+ * <p>With manual commit enabled, only the offsets of records whose callback has completed are committed, so a record is
+ * never marked consumed before it has been sent (at-least-once delivery). Commits are asynchronous and batched by record
+ * count or time. Offsets are committed synchronously when partitions are revoked and when the consumer stops. If the
+ * callback fails, the consumer seeks its partition back to the failed record, so that record and the ones after it are
+ * polled and processed again, and the partition's offset is not committed past the failed record until it has been
+ * processed. A record that still fails after {@value #MAX_RECORD_ATTEMPTS} attempts is skipped.
+ */
 public class KafkaConsumerRunnable implements Runnable
 {
     private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
     private final AtomicBoolean closed = new AtomicBoolean(false);
-    private final KafkaConsumer<String, String> consumer;
+    private final Consumer<String, byte[]> consumer;
     private final String topic;
-    private final Consumer<ConsumerRecord<String, String>> onMsgCallback;
+    private final java.util.function.Consumer<ConsumerRecord<String, byte[]>> onMsgCallback;
+    private final java.util.function.Consumer<List<ConsumerRecord<String, byte[]>>> onBatchCallback;
     private final Duration TIMEOUT = Duration.ofMillis(5000);
+    private final Duration PAUSED_TIMEOUT = Duration.ofMillis(100);
+    private final long WORKER_SHUTDOWN_TIMEOUT_MS = 5000;
+    static final int MAX_RECORD_ATTEMPTS = 3;
 
-    public KafkaConsumerRunnable(KafkaConsumer<String, String> consumer, String topic,
-                           Consumer<ConsumerRecord<String, String>> onMsgCallback) {
+    private final DecodeWorker[] workers;
+    private final ExecutorService workerPool;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong pauses = new AtomicLong();
+    private volatile boolean paused = false;
+
+    private boolean manualCommit = false;
+    private int commitBatchSize;
+    private long commitIntervalMs;
+    private long lastCommitTime;
+    // next offset to commit for each partition, i.e. the offset of the last processed record plus one
+    private final Map<TopicPartition, Long> processedOffsets = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, Long> committedOffsets = new HashMap<>();
+    private final AtomicInteger processedSinceCommit = new AtomicInteger();
+    // partitions whose offset is no longer advanced because their records may still be queued, cleared when the
+    // partitions are assigned again
+    private final Set<TopicPartition> revokedPartitions = ConcurrentHashMap.newKeySet();
+    // earliest failed record of each partition being retried, its offset is not advanced until that record is processed
+    private final Map<TopicPartition, Failure> failures = new ConcurrentHashMap<>();
+    // offsets the polling thread seeks failed partitions back to
+    private final Map<TopicPartition, Long> retryOffsets = new ConcurrentHashMap<>();
+    private final AtomicLong commitFailures = new AtomicLong();
+
+    public KafkaConsumerRunnable(Consumer<String, byte[]> consumer, String topic,
+                           java.util.function.Consumer<ConsumerRecord<String, byte[]>> onMsgCallback) {
+        this(consumer, topic, onMsgCallback, 0, 0, 0);
+    }
+
+    /**
+     * @param decodeWorkers number of threads that run the callback. 0 runs it on the polling thread.
+     * @param highWatermark queued record count at which partitions are paused
+     * @param lowWatermark queued record count at which paused partitions are resumed
+     */
+    public KafkaConsumerRunnable(Consumer<String, byte[]> consumer, String topic,
+                           java.util.function.Consumer<ConsumerRecord<String, byte[]>> onMsgCallback,
+                           int decodeWorkers, int highWatermark, int lowWatermark) {
+        this(consumer, topic, decodeWorkers, highWatermark, lowWatermark, onMsgCallback, null);
+    }
+
+    /**
+     * Creates a consumer whose callback is run once per batch of records, so that it can convert the batch in
+     * parallel and amortize per-record work.
+     *
+     * @param decodeWorkers number of threads that run the callback. 0 runs it on the polling thread.
+     * @param highWatermark queued record count at which partitions are paused
+     * @param lowWatermark queued record count at which paused partitions are resumed
+     */
+    public static KafkaConsumerRunnable batched(Consumer<String, byte[]> consumer, String topic,
+                                                java.util.function.Consumer<List<ConsumerRecord<String, byte[]>>> onBatchCallback,
+                                                int decodeWorkers, int highWatermark, int lowWatermark) {
+        return new KafkaConsumerRunnable(consumer, topic, decodeWorkers, highWatermark, lowWatermark, null,
+                onBatchCallback);
+    }
+
+    private KafkaConsumerRunnable(Consumer<String, byte[]> consumer, String topic, int decodeWorkers,
+                                  int highWatermark, int lowWatermark,
+                                  java.util.function.Consumer<ConsumerRecord<String, byte[]>> onMsgCallback,
+                                  java.util.function.Consumer<List<ConsumerRecord<String, byte[]>>> onBatchCallback) {
+        if (decodeWorkers > 0 && (lowWatermark < 0 || highWatermark <= lowWatermark)) {
+            throw new IllegalArgumentException("invalid watermarks, high: " + highWatermark + " low: " + lowWatermark);
+        }
         this.consumer = consumer;
         this.topic = topic;
         this.onMsgCallback = onMsgCallback;
+        this.onBatchCallback = onBatchCallback;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+
+        workers = new DecodeWorker[decodeWorkers];
+        for (int i = 0; i < decodeWorkers; i++) {
+            workers[i] = new DecodeWorker(highWatermark);
+        }
+        workerPool = decodeWorkers > 0 ? Executors.newFixedThreadPool(decodeWorkers) : null;
+    }
+
+    /**
+     * Commits offsets of processed records instead of relying on auto-commit, which must be disabled in the consumer
+     * properties. Must be called before the runnable is started.
+     *
+     * @param commitBatchSize commit once this many records have been processed since the last commit
+     * @param commitIntervalMs commit at least this often while records are being processed
+     */
+    public void enableManualCommit(int commitBatchSize, long commitIntervalMs) {
+        this.manualCommit = true;
+        this.commitBatchSize = commitBatchSize;
+        this.commitIntervalMs = commitIntervalMs;
     }
 
     @Override
     public void run() {
         try {
-            consumer.subscribe(Arrays.asList(topic));
+            for (DecodeWorker worker : workers) {
+                workerPool.execute(worker);
+            }
+            consumer.subscribe(Arrays.asList(topic), new RebalanceListener());
+            lastCommitTime = System.currentTimeMillis();
+            // wake up often enough to commit on time
+            Duration timeout = manualCommit && commitIntervalMs < TIMEOUT.toMillis()
+                    ? Duration.ofMillis(commitIntervalMs) : TIMEOUT;
             while (!closed.get()) {
-                ConsumerRecords<String, String> records = consumer.poll(TIMEOUT);
-                for (ConsumerRecord<String, String> record : records) {
-                    onMsgCallback.accept(record);
+                if (!retryOffsets.isEmpty()) {
+                    seekToFailed();
+                }
+                ConsumerRecords<String, byte[]> records = consumer.poll(paused ? PAUSED_TIMEOUT : timeout);
+                if (records.isEmpty()) {
+                    // nothing to process
+                } else if (workers.length == 0) {
+                    List<ConsumerRecord<String, byte[]>> batch = new ArrayList<>(records.count());
+                    records.forEach(batch::add);
+                    process(batch);
+                } else {
+                    for (TopicPartition partition : records.partitions()) {
+                        dispatch(partition, records.records(partition));
+                    }
+                }
+                if (workers.length > 0) {
+                    applyBackpressure();
+                }
+                if (manualCommit) {
+                    maybeCommit();
                 }
             }
         }
@@ -45,6 +192,12 @@ public class KafkaConsumerRunnable implements Runnable
             if (!closed.get()) throw e;
         }
         finally {
+            stopWorkers();
+            if (manualCommit) {
+                commitProcessed(consumer.assignment());
+            }
+            // closing leaves the group, so the remaining consumers are rebalanced right away instead of after the
+            // session timeout
             consumer.close();
         }
     }
@@ -53,4 +206,305 @@ public class KafkaConsumerRunnable implements Runnable
         closed.set(true);
         consumer.wakeup();
     }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    public long getCommitFailures() {
+        return commitFailures.get();
+    }
+
+    private void process(List<ConsumerRecord<String, byte[]>> records) {
+        if (onMsgCallback != null) {
+            for (ConsumerRecord<String, byte[]> record : records) {
+                try {
+                    onMsgCallback.accept(record);
+                    processed(record, record, 1);
+                } catch (Exception e) {
+                    logger.error("exception processing record {}-{}@{}", record.topic(), record.partition(),
+                            record.offset(), e);
+                    failed(record);
+                }
+            }
+            return;
+        }
+
+        try {
+            onBatchCallback.accept(records);
+        } catch (Exception e) {
+            ConsumerRecord<String, byte[]> first = records.get(0);
+            logger.error("exception processing {} records from {}-{}@{}", records.size(), first.topic(),
+                    first.partition(), first.offset(), e);
+            // the first record of each partition in the batch is the earliest one that may not have been sent
+            for (int i = 0; i < records.size(); i++) {
+                if (i == 0 || records.get(i - 1).partition() != records.get(i).partition()) {
+                    failed(records.get(i));
+                }
+            }
+            return;
+        }
+
+        // a poll returns the records of each partition together, mark the first and last one of each
+        for (int i = 0, first = 0; i < records.size(); i++) {
+            ConsumerRecord<String, byte[]> record = records.get(i);
+            if (i == records.size() - 1 || records.get(i + 1).partition() != record.partition()) {
+                processed(records.get(first), record, i - first + 1);
+                first = i + 1;
+            }
+        }
+    }
+
+    // first and last are the earliest and latest records of one partition that were processed together
+    private void processed(ConsumerRecord<String, byte[]> first, ConsumerRecord<String, byte[]> last, int count) {
+        if (manualCommit) {
+            TopicPartition partition = new TopicPartition(last.topic(), last.partition());
+            if (revokedPartitions.contains(partition)) {
+                return;
+            }
+            Failure failure = failures.get(partition);
+            if (failure != null) {
+                if (first.offset() > failure.offset || last.offset() < failure.offset) {
+                    // polled before the seek back to the failed record, they are processed again after it
+                    return;
+                }
+                failures.remove(partition);
+            }
+            // records of a partition complete in order, so this is the highest processed offset
+            processedOffsets.put(partition, last.offset() + 1);
+            processedSinceCommit.addAndGet(count);
+        }
+    }
+
+    private void failed(ConsumerRecord<String, byte[]> record) {
+        if (!manualCommit) {
+            return;
+        }
+        TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+        if (revokedPartitions.contains(partition)) {
+            return;
+        }
+        Failure failure = failures.get(partition);
+        if (failure != null && failure.offset != record.offset()) {
+            // polled before the seek back to the earlier failed record, it is retried after that one
+            return;
+        }
+        int attempts = failure == null ? 1 : failure.attempts + 1;
+        if (attempts >= MAX_RECORD_ATTEMPTS) {
+            failures.remove(partition);
+            logger.error("{}-{}@{} failed {} times, skipping it", record.topic(), record.partition(), record.offset(),
+                    attempts);
+            return;
+        }
+        failures.put(partition, new Failure(record.offset(), attempts));
+        retryOffsets.put(partition, record.offset());
+        logger.warn("retrying {}-{} from {}, offsets are not committed past it until it has been processed",
+                record.topic(), record.partition(), record.offset());
+    }
+
+    // must run on the polling thread
+    private void seekToFailed() {
+        Set<TopicPartition> assignment = consumer.assignment();
+        for (TopicPartition partition : new ArrayList<>(retryOffsets.keySet())) {
+            Long offset = retryOffsets.remove(partition);
+            // a partition revoked since is consumed from its committed offset by its new owner
+            if (offset != null && assignment.contains(partition)) {
+                consumer.seek(partition, offset);
+            }
+        }
+    }
+
+    // must run on the polling thread
+    private void maybeCommit() {
+        long now = System.currentTimeMillis();
+        if (processedSinceCommit.get() < commitBatchSize && now - lastCommitTime < commitIntervalMs) {
+            return;
+        }
+        lastCommitTime = now;
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = uncommittedOffsets(consumer.assignment());
+        if (offsets.isEmpty()) {
+            return;
+        }
+        processedSinceCommit.set(0);
+        consumer.commitAsync(offsets, (committed, exception) -> {
+            if (exception != null) {
+                // a later commit covers these offsets, or the records are redelivered after a rebalance
+                commitFailures.incrementAndGet();
+                logger.warn("async offset commit failed for {}", committed, exception);
+            }
+        });
+    }
+
+    // must run on the polling thread
+    private void commitProcessed(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = uncommittedOffsets(partitions);
+        if (offsets.isEmpty()) {
+            return;
+        }
+        try {
+            try {
+                consumer.commitSync(offsets);
+            } catch (WakeupException e) {
+                // a wakeup from stop() that no poll consumed, throwing it cleared it
+                consumer.commitSync(offsets);
+            }
+        } catch (Exception e) {
+            commitFailures.incrementAndGet();
+            logger.warn("offset commit failed for {}", offsets, e);
+        }
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> uncommittedOffsets(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            Long offset = processedOffsets.get(partition);
+            if (offset != null && !offset.equals(committedOffsets.get(partition))) {
+                offsets.put(partition, new OffsetAndMetadata(offset));
+                committedOffsets.put(partition, offset);
+            }
+        }
+        return offsets;
+    }
+
+    private void dispatch(TopicPartition partition, List<ConsumerRecord<String, byte[]>> records) {
+        queued.addAndGet(records.size());
+        BlockingQueue<List<ConsumerRecord<String, byte[]>>> queue =
+                workers[Math.floorMod(partition.partition(), workers.length)].queue;
+        try {
+            // partitions are paused at the high watermark, so this only waits if one worker is far behind the others
+            while (!queue.offer(records, PAUSED_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                if (closed.get()) {
+                    queued.addAndGet(-records.size());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            queued.addAndGet(-records.size());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // must run on the polling thread, the consumer is not thread-safe
+    private void applyBackpressure() {
+        int depth = queued.get();
+        if (depth >= highWatermark) {
+            // partitions assigned by a rebalance since the last pause are not paused yet, so pause everything again
+            consumer.pause(consumer.assignment());
+            if (!paused) {
+                paused = true;
+                pauses.incrementAndGet();
+                logger.info("{} records queued, pausing partitions {}", depth, consumer.assignment());
+            }
+        } else if (paused && depth <= lowWatermark) {
+            consumer.resume(consumer.paused());
+            paused = false;
+            logger.info("{} records queued, resuming partitions {}", depth, consumer.assignment());
+        }
+    }
+
+    // lets the workers finish the records already handed to them
+    private void stopWorkers() {
+        if (workerPool == null) {
+            return;
+        }
+        for (DecodeWorker worker : workers) {
+            worker.stopping = true;
+        }
+        workerPool.shutdown();
+        try {
+            if (!workerPool.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("decode workers did not finish within {} ms, {} records dropped", WORKER_SHUTDOWN_TIMEOUT_MS,
+                        queued.get());
+                workerPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workerPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class DecodeWorker implements Runnable {
+
+        private final BlockingQueue<List<ConsumerRecord<String, byte[]>>> queue;
+        private volatile boolean stopping = false;
+
+        private DecodeWorker(int capacity) {
+            queue = new LinkedBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopping || !queue.isEmpty()) {
+                    List<ConsumerRecord<String, byte[]>> records = queue.poll(PAUSED_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                    if (records == null) {
+                        continue;
+                    }
+                    try {
+                        process(records);
+                    } finally {
+                        queued.addAndGet(-records.size());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Failure {
+
+        private final long offset;
+        private final int attempts;
+
+        private Failure(long offset, int attempts) {
+            this.offset = offset;
+            this.attempts = attempts;
+        }
+    }
+
+    private class RebalanceListener implements ConsumerRebalanceListener {
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            logger.info("{} partitions revoked: {}", Thread.currentThread().getName(), partitions);
+            if (manualCommit) {
+                // records of these partitions still queued are sent, but may be redelivered to the new owner, whose
+                // commits their offsets must not overwrite
+                revokedPartitions.addAll(partitions);
+                commitProcessed(partitions);
+                for (TopicPartition partition : partitions) {
+                    processedOffsets.remove(partition);
+                    committedOffsets.remove(partition);
+                    failures.remove(partition);
+                    retryOffsets.remove(partition);
+                }
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            logger.info("{} partitions assigned: {}", Thread.currentThread().getName(), partitions);
+            // consuming restarts from the committed offsets
+            for (TopicPartition partition : partitions) {
+                processedOffsets.remove(partition);
+                committedOffsets.remove(partition);
+                failures.remove(partition);
+                retryOffsets.remove(partition);
+            }
+            revokedPartitions.removeAll(partitions);
+            if (paused) {
+                consumer.pause(partitions);
+            }
+        }
+    }
 }
@@ -0,0 +1,500 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Publishes records to Kafka without waiting on the broker for each one. The number of records that have been handed to
+ * the producer but not yet acknowledged is bounded, so a slow or unreachable broker shows up as rejected records in the
+ * counters instead of an unbounded producer buffer. Delivery failures are counted in the producer callback.
+ *
+ * <p>A rejection or a delivery failure marks the publisher unhealthy, and the record is passed to the failure handler,
+ * if one is set, e.g. to spill it to disk. Delivery failures are handed over on the producer's I/O thread, so the
+ * handler must not block. The publisher is healthy again once {@link #sendAndWait} delivers a batch.
+ *
+ * <p>With transactions enabled, records are sent inside a producer transaction that is committed once it holds enough
+ * records, or when {@link #commitTransaction} is called on a timer. A full transaction is committed on the committer
+ * given to {@link #enableTransactions}, not on the thread publishing the record, so publishing never waits for the
+ * broker. Sends share a read lock and the commit takes the write lock, so records are never sent between a commit and
+ * the next transaction. If a transaction is aborted, all of its records are passed to the failure handler.
+ *
+ * @param <K> record key type
+ * @param <V> record value type
+ */
+public class KafkaMessagePublisher<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final Duration CLOSE_TIMEOUT = Duration.ofMillis(5000);
+
+    private static final String TOPIC_METRICS_GROUP = "producer-topic-metrics";
+    private static final Set<String> TOPIC_METRICS = Set.of("byte-rate", "record-send-rate", "compression-rate");
+
+    private final Producer<K, V> producer;
+    private final boolean synchronous;
+    private final int maxInFlight;
+    private final long maxBlockMs;
+    private final Semaphore inFlight;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private final Consumer<ProducerRecord<K, V>> failureHandler;
+    private volatile boolean healthy = true;
+
+    private volatile boolean transactional = false;
+    private int transactionMaxRecords;
+    private Executor committer;
+    private final AtomicBoolean commitRequested = new AtomicBoolean();
+    private final ReadWriteLock transactionLock = new ReentrantReadWriteLock();
+    private final Queue<ProducerRecord<K, V>> transactionRecords = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger transactionSize = new AtomicInteger();
+    private volatile boolean transactionsFenced = false;
+    private final LongAdder transactionsCommitted = new LongAdder();
+    private final LongAdder transactionsAborted = new LongAdder();
+    private final LongAdder transactionCommitNanos = new LongAdder();
+
+    /**
+     * @param producer the underlying producer
+     * @param synchronous if true, flush after every record (one broker round-trip per record)
+     * @param maxInFlight maximum number of records sent but not yet acknowledged
+     * @param maxBlockMs how long to wait for an in-flight slot before rejecting a record
+     */
+    public KafkaMessagePublisher(Producer<K, V> producer, boolean synchronous, int maxInFlight, long maxBlockMs) {
+        this(producer, synchronous, maxInFlight, maxBlockMs, null);
+    }
+
+    /**
+     * @param producer the underlying producer
+     * @param synchronous if true, flush after every record (one broker round-trip per record)
+     * @param maxInFlight maximum number of records sent but not yet acknowledged
+     * @param maxBlockMs how long to wait for an in-flight slot before rejecting a record
+     * @param failureHandler receives records that were rejected or failed delivery, may be null
+     */
+    public KafkaMessagePublisher(Producer<K, V> producer, boolean synchronous, int maxInFlight, long maxBlockMs,
+                                 Consumer<ProducerRecord<K, V>> failureHandler) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.producer = producer;
+        this.synchronous = synchronous;
+        this.maxInFlight = maxInFlight;
+        this.maxBlockMs = maxBlockMs;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Sends records in transactions, for read_committed consumers. The producer must be configured with a
+     * {@code transactional.id}. Must be called before the first record is published.
+     *
+     * @param maxRecords commit a transaction once it holds this many records
+     * @param committer runs the commit of a full transaction, e.g. the thread committing on a timer
+     */
+    public void enableTransactions(int maxRecords, Executor committer) {
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException("maxRecords must be positive: " + maxRecords);
+        }
+        producer.initTransactions();
+        producer.beginTransaction();
+        this.transactionMaxRecords = maxRecords;
+        this.committer = committer;
+        this.transactional = true;
+    }
+
+    /**
+     * Hands a record to the producer.
+     *
+     * @param record the record to send
+     * @return false if the record was rejected because the in-flight limit was reached, or the producer threw instead of
+     * sending it
+     */
+    public boolean publish(ProducerRecord<K, V> record) {
+        try {
+            if (!inFlight.tryAcquire(maxBlockMs, TimeUnit.MILLISECONDS)) {
+                rejected.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("in-flight limit of {} reached, rejecting record for topic {}", maxInFlight, record.topic());
+                }
+                onFailure(record);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            onFailure(record);
+            return false;
+        }
+
+        if (transactional) {
+            return sendInTransaction(record);
+        }
+
+        try {
+            producer.send(record, new DeliveryCallback(record));
+            sent.increment();
+        } catch (RuntimeException e) {
+            // exceptions thrown from send() never reach the callback
+            inFlight.release();
+            failed.increment();
+            logger.error("exception sending record to topic {}", record.topic(), e);
+            onFailure(record);
+            return false;
+        }
+
+        if (synchronous) {
+            producer.flush();
+        }
+
+        return true;
+    }
+
+    private boolean sendInTransaction(ProducerRecord<K, V> record) {
+        int size;
+        transactionLock.readLock().lock();
+        try {
+            if (transactionsFenced) {
+                inFlight.release();
+                failed.increment();
+                onFailure(record);
+                return false;
+            }
+            producer.send(record, new DeliveryCallback(record));
+            sent.increment();
+            transactionRecords.add(record);
+            size = transactionSize.incrementAndGet();
+        } catch (RuntimeException e) {
+            inFlight.release();
+            failed.increment();
+            logger.error("exception sending record to topic {}", record.topic(), e);
+            onFailure(record);
+            return false;
+        } finally {
+            transactionLock.readLock().unlock();
+        }
+
+        // one request at a time, records sent until it runs join the transaction
+        if (size >= transactionMaxRecords && commitRequested.compareAndSet(false, true)) {
+            try {
+                committer.execute(() -> {
+                    try {
+                        commitTransaction();
+                    } finally {
+                        commitRequested.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // stopping, close() commits the last transaction
+                commitRequested.set(false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commits the current transaction, if it holds any records, and begins the next one. Does nothing if transactions
+     * are not enabled.
+     *
+     * @return false if the transaction was aborted
+     */
+    public boolean commitTransaction() {
+        return transactional && commit(false);
+    }
+
+    private boolean commit(boolean force) {
+        transactionLock.writeLock().lock();
+        try {
+            if (transactionsFenced || (!force && transactionRecords.isEmpty())) {
+                return !transactionsFenced;
+            }
+
+            long start = System.nanoTime();
+            try {
+                producer.commitTransaction();
+                transactionCommitNanos.add(System.nanoTime() - start);
+                transactionsCommitted.increment();
+                // records sent by sendAndCommit are not in transactionRecords, it counts them itself
+                acknowledged.add(transactionSize.get());
+                transactionRecords.clear();
+                transactionSize.set(0);
+                producer.beginTransaction();
+                return true;
+            } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+                // the producer can't be used anymore, e.g. another instance started with the same transactional.id
+                transactionsFenced = true;
+                logger.error("kafka transaction failed, no more records will be sent", e);
+                abandon();
+            } catch (KafkaException e) {
+                logger.warn("kafka transaction of {} records failed, aborting", transactionSize.get(), e);
+                abort();
+            }
+            return false;
+        } finally {
+            transactionLock.writeLock().unlock();
+        }
+    }
+
+    // must hold the write lock
+    private void abort() {
+        try {
+            producer.abortTransaction();
+            producer.beginTransaction();
+        } catch (KafkaException e) {
+            transactionsFenced = true;
+            logger.error("kafka transaction abort failed, no more records will be sent", e);
+        }
+        abandon();
+    }
+
+    // must hold the write lock, hands the records of the aborted transaction to the failure handler
+    private void abandon() {
+        List<ProducerRecord<K, V>> records = new ArrayList<>(transactionRecords);
+        transactionRecords.clear();
+        transactionSize.set(0);
+        transactionsAborted.increment();
+        failed.add(records.size());
+        records.forEach(this::onFailure);
+    }
+
+    /**
+     * Sends records in order and waits for them to be acknowledged, bypassing the in-flight limit. Used to drain
+     * records that were set aside while the broker was unreachable, and to find out whether it is reachable again.
+     *
+     * @param records the records to send
+     * @param timeoutMs how long to wait for the records to be acknowledged
+     * @return the indexes of the records that were delivered. Records after one that failed may have been delivered
+     * as well, and must not be sent again.
+     */
+    public BitSet sendAndWait(List<ProducerRecord<K, V>> records, long timeoutMs) {
+        if (transactional) {
+            return sendAndCommit(records);
+        }
+
+        List<Future<RecordMetadata>> futures = new ArrayList<>(records.size());
+        try {
+            for (ProducerRecord<K, V> record : records) {
+                futures.add(producer.send(record));
+                sent.increment();
+            }
+            producer.flush();
+        } catch (RuntimeException e) {
+            // e.g. a timeout waiting for metadata, the remaining records are not sent
+            failed.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("exception sending records", e);
+            }
+        }
+
+        BitSet delivered = new BitSet(records.size());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                acknowledged.increment();
+                delivered.set(i);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                failed.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("kafka delivery failed", e);
+                }
+            }
+        }
+
+        healthy = delivered.cardinality() == records.size();
+        return delivered;
+    }
+
+    // sent in the current transaction, but not handed to the failure handler if it is aborted, the caller still has them
+    private BitSet sendAndCommit(List<ProducerRecord<K, V>> records) {
+        BitSet delivered = new BitSet(records.size());
+        transactionLock.writeLock().lock();
+        try {
+            if (transactionsFenced) {
+                return delivered;
+            }
+            for (ProducerRecord<K, V> record : records) {
+                producer.send(record);
+                sent.increment();
+            }
+            if (commit(true)) {
+                acknowledged.add(records.size());
+                healthy = true;
+                delivered.set(0, records.size());
+                return delivered;
+            }
+        } catch (RuntimeException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("exception sending records", e);
+            }
+            // the records already sent are in the transaction, abort it so they are not committed with later ones
+            if (!transactionsFenced) {
+                abort();
+            }
+        } finally {
+            transactionLock.writeLock().unlock();
+        }
+        healthy = false;
+        return delivered;
+    }
+
+    /**
+     * @return false after a rejection or delivery failure, until {@link #sendAndWait} delivers a batch
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getAcknowledged() {
+        return acknowledged.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getTransactionsCommitted() {
+        return transactionsCommitted.sum();
+    }
+
+    public long getTransactionsAborted() {
+        return transactionsAborted.sum();
+    }
+
+    public void logStats() {
+        logger.info("kafka producer stats - sent: {} acknowledged: {} failed: {} rejected: {} in flight: {}",
+                getSent(), getAcknowledged(), getFailed(), getRejected(), getInFlight());
+
+        if (transactional) {
+            long committed = getTransactionsCommitted();
+            logger.info("kafka producer transactions - committed: {} aborted: {} mean commit time: {} us",
+                    committed, getTransactionsAborted(),
+                    committed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(transactionCommitNanos.sum() / committed));
+        }
+
+        getTopicMetrics().forEach((topic, metrics) -> logger.info("kafka producer topic {} - {}", topic, metrics));
+    }
+
+    /**
+     * Per-topic producer metrics: bytes sent per second, records sent per second and average compression ratio
+     * (compressed size / uncompressed size) of the record batches.
+     *
+     * @return metric name to value, by topic
+     */
+    public Map<String, Map<String, Double>> getTopicMetrics() {
+        Map<String, Map<String, Double>> topicMetrics = new TreeMap<>();
+        for (Map.Entry<MetricName, ? extends Metric> entry : producer.metrics().entrySet()) {
+            MetricName name = entry.getKey();
+            if (TOPIC_METRICS_GROUP.equals(name.group()) && TOPIC_METRICS.contains(name.name())) {
+                Object value = entry.getValue().metricValue();
+                if (value instanceof Double) {
+                    topicMetrics.computeIfAbsent(name.tags().get("topic"), topic -> new TreeMap<>())
+                            .put(name.name(), (Double) value);
+                }
+            }
+        }
+        return topicMetrics;
+    }
+
+    /**
+     * Flushes outstanding records and closes the underlying producer.
+     */
+    public void close() {
+        try {
+            commitTransaction();
+            producer.flush();
+        } catch (Exception e) {
+            logger.error("exception flushing kafka producer", e);
+        }
+        producer.close(CLOSE_TIMEOUT);
+        logStats();
+    }
+
+    private void onFailure(ProducerRecord<K, V> record) {
+        healthy = false;
+        if (failureHandler != null) {
+            failureHandler.accept(record);
+        }
+    }
+
+    private class DeliveryCallback implements Callback {
+
+        private final ProducerRecord<K, V> record;
+
+        private DeliveryCallback(ProducerRecord<K, V> record) {
+            this.record = record;
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            inFlight.release();
+            if (exception == null) {
+                // records of a transaction are acknowledged once it commits
+                if (!transactional) {
+                    acknowledged.increment();
+                }
+            } else {
+                failed.increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("kafka delivery failed", exception);
+                }
+                if (transactional) {
+                    // the commit fails as well, and hands every record of the transaction to the failure handler
+                    healthy = false;
+                } else {
+                    onFailure(record);
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package tak.server.plugins;
 
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
 import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
 import atakmap.commoncommo.protobuf.v1.MessageOuterClass;
 import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
@@ -7,20 +8,36 @@ import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import tak.server.cot.CotEventContainer;
-import tak.server.proto.StreamingProtoBufHelper;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 @TakServerPlugin(name = "TAK Server Kafka Plugin", description = "")
@@ -29,14 +46,95 @@ public class KafkaPlugin extends MessageSenderReceiverBase {
 
     private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+    private static final String PROVENANCE = KafkaPlugin.class.getName();
+
     private String kafkaHost;
     private String kafkaConsumerTopic;
     private String kafkaProducerTopic;
     private Set<String> groups;
 
-    private ExecutorService executor = Executors.newFixedThreadPool(1);
-    private KafkaConsumerRunnable kafkaConsumer;
-    private KafkaProducer<String, String> kafkaProducer;
+    private KafkaWireFormat format = KafkaWireFormat.XML;
+    private int consumerThreads = 1;
+    private int consumerDecodeThreads = 2;
+    private int consumerQueueHighWatermark = 5000;
+    private int consumerQueueLowWatermark = 1000;
+    private String consumerDeliveryMode = "autoCommit";
+    private int consumerCommitBatchSize = 1000;
+    private long consumerCommitIntervalMs = 1000;
+
+    // without decode threads, batches at least this large are converted on all cores, smaller ones are not worth the
+    // hand-off
+    private static final int PARALLEL_CONVERSION_MIN_BATCH = 64;
+
+    // assigned to every message read from Kafka, computed once rather than per record
+    private final String clientId = Integer.toString(System.identityHashCode(this));
+    private final LongAdder consumerReceived = new LongAdder();
+    private final LongAdder consumerSent = new LongAdder();
+    private final LongAdder consumerFailed = new LongAdder();
+
+    static final String ORIGIN_HEADER = "tak-origin";
+
+    private String originId;
+    private byte[] originIdBytes;
+    private boolean loopSuppression = true;
+    private int recentMessageCacheSize = 100000;
+    private long recentMessageTtlMs = 60000;
+    private RecentMessageCache recentMessages;
+    private final LongAdder suppressedByProvenance = new LongAdder();
+    private final LongAdder suppressedByFingerprint = new LongAdder();
+    private final LongAdder suppressedByOrigin = new LongAdder();
+
+    private TopicRouter topicRouter;
+
+    private String latestStateTopic;
+    private long latestStateSweepIntervalMs = 5000;
+    private String latestStateBootstrapTopic;
+    private long latestStateBootstrapTimeoutMs = 60000;
+    private final StaleTracker staleTracker = new StaleTracker();
+    private ScheduledFuture<?> latestStateFuture;
+
+    private String producerKey = "uid";
+    private List<String> hotUids;
+    private int hotUidSpread = 4;
+
+    private String producerCompression = "none";
+
+    private String producerMode = "async";
+    private int producerLingerMs = 5;
+    private int producerBatchSize = 64 * 1024;
+    private int producerMaxInFlight = 10000;
+    private long producerMaxBlockMs = 100;
+    private long producerSendMaxBlockMs = 1000;
+    private long producerStatsIntervalMs = 60000;
+    private String producerTransactionalId;
+    private int producerTransactionMaxRecords = 1000;
+    private long producerTransactionIntervalMs = 100;
+    // commits run on their own thread, so a blocking spill drain or a slow task on the shared worker can't delay them
+    private ScheduledExecutorService transactionWorker;
+
+    private String spillPath;
+    private int spillMaxMb = 256;
+    private SpillJournal.DropPolicy spillDropPolicy = SpillJournal.DropPolicy.DROP_NEWEST;
+    private long spillDrainIntervalMs = 1000;
+    private int spillDrainBatchSize = 500;
+    private long spillDrainTimeoutMs = 5000;
+    private SpillJournal spillJournal;
+    private ScheduledFuture<?> spillFuture;
+    // appends to the journal, so neither onMessage nor the producer's I/O thread, which runs the failure handler,
+    // waits on a disk write
+    private ExecutorService spillExecutor;
+    private final AtomicInteger spillPending = new AtomicInteger();
+
+    private static final long CONSUMER_SHUTDOWN_TIMEOUT_MS = 10000;
+    private static final long SPILL_SHUTDOWN_TIMEOUT_MS = 5000;
+    private static final long TRANSACTION_SHUTDOWN_TIMEOUT_MS = 5000;
+
+    private ExecutorService executor;
+    private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
+    private ScheduledFuture<?> statsFuture;
+    private final List<KafkaConsumerRunnable> kafkaConsumers = new ArrayList<>();
+    // set by start(), read by the threads calling onMessage
+    private volatile KafkaMessagePublisher<String, byte[]> kafkaPublisher;
 
     @SuppressWarnings("unchecked")
     public KafkaPlugin() {
@@ -56,63 +154,622 @@ public class KafkaPlugin extends MessageSenderReceiverBase {
             groups = new HashSet<String>((List<String>) config.getProperty("groups"));
         }
 
+        if (config.containsProperty("format")) {
+            format = KafkaWireFormat.fromConfig((String)config.getProperty("format"));
+        }
+
+        if (config.containsProperty("consumerThreads")) {
+            consumerThreads = (int)config.getProperty("consumerThreads");
+        }
+
+        if (config.containsProperty("consumerDecodeThreads")) {
+            consumerDecodeThreads = (int)config.getProperty("consumerDecodeThreads");
+        }
+
+        if (config.containsProperty("consumerQueueHighWatermark")) {
+            consumerQueueHighWatermark = (int)config.getProperty("consumerQueueHighWatermark");
+        }
+
+        if (config.containsProperty("consumerQueueLowWatermark")) {
+            consumerQueueLowWatermark = (int)config.getProperty("consumerQueueLowWatermark");
+        }
+
+        if (config.containsProperty("consumerDeliveryMode")) {
+            consumerDeliveryMode = (String)config.getProperty("consumerDeliveryMode");
+        }
+
+        if (config.containsProperty("consumerCommitBatchSize")) {
+            consumerCommitBatchSize = (int)config.getProperty("consumerCommitBatchSize");
+        }
+
+        if (config.containsProperty("consumerCommitIntervalMs")) {
+            consumerCommitIntervalMs = (int)config.getProperty("consumerCommitIntervalMs");
+        }
+
+        if (config.containsProperty("routes")) {
+            // unmatched messages still go to kafkaProducerTopic, if it is set
+            topicRouter = new TopicRouter((List<Map<String, Object>>) config.getProperty("routes"), kafkaProducerTopic);
+        }
+
+        if (config.containsProperty("latestStateTopic")) {
+            latestStateTopic = (String)config.getProperty("latestStateTopic");
+        }
+
+        if (config.containsProperty("latestStateSweepIntervalMs")) {
+            latestStateSweepIntervalMs = (int)config.getProperty("latestStateSweepIntervalMs");
+        }
+
+        if (config.containsProperty("latestStateBootstrapTopic")) {
+            latestStateBootstrapTopic = (String)config.getProperty("latestStateBootstrapTopic");
+        }
+
+        if (config.containsProperty("latestStateBootstrapTimeoutMs")) {
+            latestStateBootstrapTimeoutMs = (int)config.getProperty("latestStateBootstrapTimeoutMs");
+        }
+
+        if (config.containsProperty("originId")) {
+            originId = (String)config.getProperty("originId");
+        } else {
+            originId = defaultOriginId();
+        }
+
+        if (config.containsProperty("loopSuppression")) {
+            loopSuppression = (boolean)config.getProperty("loopSuppression");
+        }
+
+        if (config.containsProperty("recentMessageCacheSize")) {
+            recentMessageCacheSize = (int)config.getProperty("recentMessageCacheSize");
+        }
+
+        if (config.containsProperty("recentMessageTtlMs")) {
+            recentMessageTtlMs = (int)config.getProperty("recentMessageTtlMs");
+        }
+
+        originIdBytes = originId.getBytes(StandardCharsets.UTF_8);
+        if (loopSuppression) {
+            recentMessages = new RecentMessageCache(recentMessageCacheSize, recentMessageTtlMs);
+        }
+
+        if (config.containsProperty("producerKey")) {
+            producerKey = (String)config.getProperty("producerKey");
+        }
+
+        if (config.containsProperty("hotUids")) {
+            hotUids = (List<String>) config.getProperty("hotUids");
+        }
+
+        if (config.containsProperty("hotUidSpread")) {
+            hotUidSpread = (int)config.getProperty("hotUidSpread");
+        }
+
+        if (config.containsProperty("producerCompression")) {
+            producerCompression = (String)config.getProperty("producerCompression");
+        }
+
+        if (config.containsProperty("producerMode")) {
+            producerMode = (String)config.getProperty("producerMode");
+        }
+
+        if (config.containsProperty("producerLingerMs")) {
+            producerLingerMs = (int)config.getProperty("producerLingerMs");
+        }
+
+        if (config.containsProperty("producerBatchSize")) {
+            producerBatchSize = (int)config.getProperty("producerBatchSize");
+        }
+
+        if (config.containsProperty("producerMaxInFlight")) {
+            producerMaxInFlight = (int)config.getProperty("producerMaxInFlight");
+        }
+
+        if (config.containsProperty("producerMaxBlockMs")) {
+            producerMaxBlockMs = (int)config.getProperty("producerMaxBlockMs");
+        }
+
+        if (config.containsProperty("producerSendMaxBlockMs")) {
+            producerSendMaxBlockMs = (int)config.getProperty("producerSendMaxBlockMs");
+        }
+
+        if (config.containsProperty("producerStatsIntervalMs")) {
+            producerStatsIntervalMs = (int)config.getProperty("producerStatsIntervalMs");
+        }
+
+        if (config.containsProperty("producerTransactionalId")) {
+            producerTransactionalId = (String)config.getProperty("producerTransactionalId");
+        }
+
+        if (config.containsProperty("producerTransactionMaxRecords")) {
+            producerTransactionMaxRecords = (int)config.getProperty("producerTransactionMaxRecords");
+        }
+
+        if (config.containsProperty("producerTransactionIntervalMs")) {
+            producerTransactionIntervalMs = (int)config.getProperty("producerTransactionIntervalMs");
+        }
+
+        if (config.containsProperty("spillPath")) {
+            spillPath = (String)config.getProperty("spillPath");
+        }
+
+        if (config.containsProperty("spillMaxMb")) {
+            spillMaxMb = (int)config.getProperty("spillMaxMb");
+            if (spillMaxMb < 1 || spillMaxMb * 1024L * 1024L > SpillJournal.MAX_CAPACITY) {
+                throw new IllegalArgumentException("spillMaxMb must be from 1 to "
+                        + SpillJournal.MAX_CAPACITY / (1024 * 1024) + ": " + spillMaxMb);
+            }
+        }
+
+        if (config.containsProperty("spillDropPolicy")) {
+            spillDropPolicy = SpillJournal.DropPolicy.fromConfig((String)config.getProperty("spillDropPolicy"));
+        }
+
+        if (config.containsProperty("spillDrainIntervalMs")) {
+            spillDrainIntervalMs = (int)config.getProperty("spillDrainIntervalMs");
+        }
+
+        if (config.containsProperty("spillDrainBatchSize")) {
+            spillDrainBatchSize = (int)config.getProperty("spillDrainBatchSize");
+        }
+
+        if (config.containsProperty("spillDrainTimeoutMs")) {
+            spillDrainTimeoutMs = (int)config.getProperty("spillDrainTimeoutMs");
+        }
+
+        if (isExactlyOnce()) {
+            // a new transactional id on every start would leave the transaction open in the previous instance hanging
+            // until it times out, holding back read_committed consumers
+            if (producerTransactionalId == null && !config.containsProperty("originId")) {
+                throw new IllegalArgumentException("producerMode exactlyOnce needs producerTransactionalId or originId");
+            }
+            // without a journal, the records of an aborted transaction would be lost
+            if (spillPath == null) {
+                throw new IllegalArgumentException("producerMode exactlyOnce needs a spillPath");
+            }
+        }
+
         logger.info("kafkaHost: {}", kafkaHost);
         logger.info("kafkaConsumerTopic: {}", kafkaConsumerTopic);
         logger.info("kafkaProducerTopic: {}", kafkaProducerTopic);
+        logger.info("format: {}", format);
+        logger.info("routes: {}", config.containsProperty("routes") ? config.getProperty("routes") : "none");
+        logger.info("consumerThreads: {} consumerDecodeThreads: {} consumerQueueHighWatermark: {} consumerQueueLowWatermark: {}",
+                consumerThreads, consumerDecodeThreads, consumerQueueHighWatermark, consumerQueueLowWatermark);
+        logger.info("consumerDeliveryMode: {} consumerCommitBatchSize: {} consumerCommitIntervalMs: {}",
+                consumerDeliveryMode, consumerCommitBatchSize, consumerCommitIntervalMs);
+        logger.info("latestStateTopic: {} latestStateBootstrapTopic: {}", latestStateTopic, latestStateBootstrapTopic);
+        if (isExactlyOnce()) {
+            logger.info("producerTransactionalId: {} producerTransactionMaxRecords: {} producerTransactionIntervalMs: {}",
+                    transactionalId(), producerTransactionMaxRecords, producerTransactionIntervalMs);
+        }
+        logger.info("spillPath: {} spillMaxMb: {} spillDropPolicy: {}", spillPath, spillMaxMb, spillDropPolicy);
+        logger.info("originId: {} loopSuppression: {} recentMessageCacheSize: {} recentMessageTtlMs: {}",
+                originId, loopSuppression, recentMessageCacheSize, recentMessageTtlMs);
+        logger.info("producerKey: {} hotUids: {} hotUidSpread: {}", producerKey, hotUids, hotUidSpread);
+        logger.info("producerCompression: {}", producerCompression);
+        logger.info("producerMode: {} producerLingerMs: {} producerBatchSize: {} producerMaxInFlight: {} producerSendMaxBlockMs: {}",
+                producerMode, producerLingerMs, producerBatchSize, producerMaxInFlight, producerSendMaxBlockMs);
+    }
+
+    /**
+     * The host name, so records published before a restart are still recognized as this plugin's own. A random id, which
+     * only holds until the next start, if the host name can't be resolved.
+     */
+    private static String defaultOriginId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            String originId = UUID.randomUUID().toString();
+            logger.warn("cannot resolve the host name, using origin id {} until the next start, set originId to keep it"
+                    + " across restarts", originId, e);
+            return originId;
+        }
+    }
+
+    // a record published by this plugin instance, read back from a topic it also consumes
+    private boolean isOwnRecord(ConsumerRecord<String, byte[]> record) {
+        Header origin = record.headers().lastHeader(ORIGIN_HEADER);
+        return origin != null && Arrays.equals(origin.value(), originIdBytes);
     }
 
     @Override
     public void onMessage(Message message) {
-        CotEventContainer cotEventContainer = StreamingProtoBufHelper.proto2cot(message.getPayload());
-        String cotXml = cotEventContainer.asXml();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Plugin message received: {}", message);
+        }
+
+        if (loopSuppression && isEcho(message)) {
+            return;
+        }
+
+        List<String> topics = topicRouter == null ? Collections.singletonList(kafkaProducerTopic) : topicRouter.route(message);
+        if (topics.isEmpty() && latestStateTopic == null) {
+            return;
+        }
+
+        // serialized once, whatever the number of topics
+        String key = recordKey(message);
+        byte[] value = format.encode(message);
+        for (String topic : topics) {
+            ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<>(topic, key, value);
+            producerRecord.headers().add(ORIGIN_HEADER, originIdBytes);
+            publish(producerRecord);
+        }
+
+        if (latestStateTopic != null) {
+            CotEvent event = message.getPayload().getCotEvent();
+            ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<>(latestStateTopic, event.getUid(), value);
+            producerRecord.headers().add(ORIGIN_HEADER, originIdBytes);
+            publish(producerRecord);
+            staleTracker.update(event.getUid(), event.getStaleTime());
+        }
+    }
+
+    /**
+     * Checks whether a message is one this plugin read from Kafka and sent into TAK Server, so it is not published
+     * back. Messages that still carry the plugin's provenance are caught without any lookup. Messages whose provenance
+     * was lost on the way are matched by UID and time against recently bridged messages.
+     */
+    private boolean isEcho(Message message) {
+        if (message.getProvenanceList().contains(PROVENANCE)) {
+            suppressedByProvenance.increment();
+            return true;
+        }
+
+        CotEvent event = message.getPayload().getCotEvent();
+        if (recentMessages.contains(RecentMessageCache.fingerprint(event.getUid(), event.getSendTime()))) {
+            suppressedByFingerprint.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void logStats() {
+        logger.info("kafka consumer stats - received: {} sent: {} failed: {}", consumerReceived.sum(), consumerSent.sum(),
+                consumerFailed.sum());
+        kafkaPublisher.logStats();
+        if (spillJournal != null) {
+            spillJournal.logStats();
+        }
+        if (loopSuppression) {
+            logger.info("kafka loop suppression - by provenance: {} by fingerprint: {} by origin header: {} cached: {}",
+                    suppressedByProvenance.sum(), suppressedByFingerprint.sum(), suppressedByOrigin.sum(),
+                    recentMessages.size());
+        }
+    }
+
+    /**
+     * Keys records by CoT UID, so that all updates of a track go to the same partition and stay in order. Read from the
+     * proto message, no XML is rendered.
+     */
+    private String recordKey(Message message) {
+        switch (producerKey) {
+            case "uid":
+                return message.getPayload().getCotEvent().getUid();
+            case "uidAndType":
+                return message.getPayload().getCotEvent().getUid() + CotUidPartitioner.KEY_SEPARATOR
+                        + message.getPayload().getCotEvent().getType();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Converts a batch of records and sends the messages into TAK Server in record order. Without decode threads, large
+     * batches are converted in parallel, with decode threads they already run in parallel, one batch per thread. Logged
+     * once per batch, individual messages only at trace level.
+     */
+    private void onKafkaRecords(List<ConsumerRecord<String, byte[]>> records) {
+        long start = System.nanoTime();
+
+        Stream<ConsumerRecord<String, byte[]>> stream = consumerDecodeThreads == 0
+                && records.size() >= PARALLEL_CONVERSION_MIN_BATCH ? records.parallelStream() : records.stream();
+        List<Message> messages = stream.map(this::convert).collect(Collectors.toList());
+
+        int sent = 0;
+        for (Message message : messages) {
+            if (message != null) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("onMessage received {}", message);
+                }
+                send(message);
+                sent++;
+            }
+        }
+
+        consumerReceived.add(records.size());
+        consumerSent.add(sent);
+        if (logger.isDebugEnabled()) {
+            ConsumerRecord<String, byte[]> first = records.get(0);
+            logger.debug("sent {} of {} records from {}-{}@{} in {} us", sent, records.size(), first.topic(),
+                    first.partition(), first.offset(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    // null if the record is skipped or can't be converted
+    private Message convert(ConsumerRecord<String, byte[]> record) {
+        try {
+            return toTakMessage(record);
+        } catch (Exception e) {
+            consumerFailed.increment();
+            logger.error("exception converting record {}-{}@{}", record.topic(), record.partition(), record.offset(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Converts a record into the message to send into TAK Server.
+     *
+     * @return null if the record was published by this plugin instance
+     */
+    private Message toTakMessage(ConsumerRecord<String, byte[]> record) throws Exception {
+        if (loopSuppression && isOwnRecord(record)) {
+            suppressedByOrigin.increment();
+            return null;
+        }
+
+        Message message = format.decode(record.value(), getConverter(), groups,
+                clientId);
+
+        if (loopSuppression) {
+            CotEvent event = message.getPayload().getCotEvent();
+            recentMessages.add(RecentMessageCache.fingerprint(event.getUid(), event.getSendTime()));
+            message = message.toBuilder().addProvenance(PROVENANCE).build();
+        }
 
-        logger.info("Plugin message received: " + cotXml);
+        return message;
+    }
+
+    /**
+     * Sends the current state of every track from the compacted latest state topic into TAK Server, before live traffic
+     * is consumed.
+     */
+    private void bootstrapLatestState(Properties consumerProps) {
+        Properties snapshotProps = new Properties();
+        snapshotProps.putAll(consumerProps);
+        // the snapshot is always read in full, its offsets are not committed
+        snapshotProps.remove("group.id");
+        snapshotProps.setProperty("enable.auto.commit", "false");
+        snapshotProps.remove("auto.commit.interval.ms");
+
+        try (KafkaConsumer<String, byte[]> consumer = new KafkaConsumer<>(snapshotProps)) {
+            Map<String, ConsumerRecord<String, byte[]>> snapshot = LatestStateSnapshot.load(consumer,
+                    latestStateBootstrapTopic, Duration.ofMillis(latestStateBootstrapTimeoutMs));
+
+            long now = System.currentTimeMillis();
+            int sent = 0;
+            for (ConsumerRecord<String, byte[]> record : snapshot.values()) {
+                try {
+                    Message message = toTakMessage(record);
+                    // a tombstone may not have been written yet for tracks that went stale recently
+                    if (message != null && message.getPayload().getCotEvent().getStaleTime() > now) {
+                        send(message);
+                        sent++;
+                    }
+                } catch (Exception e) {
+                    logger.error("exception converting latest state of {}", record.key(), e);
+                }
+            }
+            logger.info("sent {} tracks from latest state topic {}", sent, latestStateBootstrapTopic);
+        } catch (Exception e) {
+            logger.error("exception loading latest state topic {}", latestStateBootstrapTopic, e);
+        }
+    }
+
+    /**
+     * Hands a record to the producer, or to the spill journal while the broker is unreachable. Records keep going to
+     * the journal until it is drained, so records spilled while the broker is down reach Kafka in order. A record whose
+     * delivery fails is spilled when the failure is reported, so it can follow later records that were delivered.
+     */
+    private void publish(ProducerRecord<String, byte[]> record) {
+        if (spillJournal != null
+                && (!kafkaPublisher.isHealthy() || spillPending.get() > 0 || !spillJournal.isEmpty())) {
+            spill(record);
+        } else {
+            kafkaPublisher.publish(record);
+        }
+    }
 
-        ProducerRecord<String, String> producerRecord = new ProducerRecord<>(kafkaProducerTopic, cotXml);
-        kafkaProducer.send(producerRecord);
-        kafkaProducer.flush();
+    private void spill(ProducerRecord<String, byte[]> record) {
+        spillPending.incrementAndGet();
+        spillExecutor.execute(() -> {
+            try {
+                spillJournal.append(record);
+            } finally {
+                spillPending.decrementAndGet();
+            }
+        });
     }
 
-    private void onKafkaMessage(ConsumerRecord<String, String> record) {
+    // sends spilled records in order, stopping after a batch that is not fully acknowledged
+    private void drainSpillJournal() {
         try {
-            String cot = record.value();
-            logger.info("onMessage received {}", cot);
-            final Message message = getConverter().cotStringToDataMessage(cot, groups,
-                    Integer.toString(System.identityHashCode(this)));
-            send(message);
+            List<ProducerRecord<String, byte[]>> records = spillJournal.peek(spillDrainBatchSize);
+            while (!records.isEmpty()) {
+                BitSet delivered = kafkaPublisher.sendAndWait(records, spillDrainTimeoutMs);
+                // records delivered after one that failed are not sent again
+                spillJournal.remove(delivered);
+                if (delivered.cardinality() < records.size()) {
+                    return;
+                }
+                records = spillJournal.peek(spillDrainBatchSize);
+            }
         } catch (Exception e) {
-            logger.error("exception in onMessage", e);
+            logger.error("exception draining spill journal", e);
         }
     }
 
+    // publishes tombstones for tracks whose latest event is stale, so compaction removes them
+    private void expireLatestState() {
+        for (String uid : staleTracker.expire(System.currentTimeMillis())) {
+            publish(new ProducerRecord<>(latestStateTopic, uid, null));
+        }
+    }
+
+    private boolean isAtLeastOnce() {
+        return "atLeastOnce".equalsIgnoreCase(consumerDeliveryMode);
+    }
+
+    private boolean isExactlyOnce() {
+        return "exactlyOnce".equalsIgnoreCase(producerMode);
+    }
+
+    // configured, so stable across restarts, and a restarted plugin fences off the transaction its previous instance
+    // left open
+    private String transactionalId() {
+        return producerTransactionalId != null ? producerTransactionalId : "kafka-tak-plugin-" + originId;
+    }
+
     @Override
     public void start() {
 
-        Properties props = new Properties();
-        props.setProperty("bootstrap.servers", kafkaHost);
-        props.setProperty("group.id", "kafka-tak-plugin");
-        props.setProperty("enable.auto.commit", "true");
-        props.setProperty("auto.commit.interval.ms", "1000");
+        Properties consumerProps = new Properties();
+        consumerProps.setProperty("bootstrap.servers", kafkaHost);
+        consumerProps.setProperty("group.id", "kafka-tak-plugin");
+        if (isAtLeastOnce()) {
+            consumerProps.setProperty("enable.auto.commit", "false");
+        } else {
+            consumerProps.setProperty("enable.auto.commit", "true");
+            consumerProps.setProperty("auto.commit.interval.ms", "1000");
+        }
 
         Thread.currentThread().setContextClassLoader(null);
-        props.setProperty("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-        props.setProperty("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        consumerProps.setProperty("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        consumerProps.setProperty("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+
+        Properties producerProps = new Properties();
+        producerProps.setProperty("bootstrap.servers", kafkaHost);
+        producerProps.setProperty("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        producerProps.setProperty("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+        producerProps.setProperty("linger.ms", Integer.toString(producerLingerMs));
+        producerProps.setProperty("batch.size", Integer.toString(producerBatchSize));
+        producerProps.setProperty("compression.type", producerCompression);
+        // send() blocks onMessage while it waits for metadata or buffer space, the default is a minute
+        producerProps.setProperty("max.block.ms", Long.toString(producerSendMaxBlockMs));
+        if (isExactlyOnce()) {
+            producerProps.setProperty("enable.idempotence", "true");
+            producerProps.setProperty("acks", "all");
+            producerProps.setProperty("transactional.id", transactionalId());
+        }
+        if (hotUids != null && !hotUids.isEmpty()) {
+            producerProps.setProperty("partitioner.class", CotUidPartitioner.class.getName());
+            producerProps.setProperty(CotUidPartitioner.HOT_UIDS_CONFIG, String.join(",", hotUids));
+            producerProps.setProperty(CotUidPartitioner.HOT_UID_SPREAD_CONFIG, Integer.toString(hotUidSpread));
+        }
 
-        props.setProperty("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        props.setProperty("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        if (spillPath != null) {
+            try {
+                spillJournal = new SpillJournal(Paths.get(spillPath), (int) (spillMaxMb * 1024L * 1024L), spillDropPolicy);
+                spillExecutor = Executors.newSingleThreadExecutor();
+            } catch (IOException e) {
+                if (isExactlyOnce()) {
+                    throw new IllegalStateException("cannot open spill journal " + spillPath
+                            + ", producerMode exactlyOnce needs it", e);
+                }
+                logger.error("exception opening spill journal {}, records will not be spilled", spillPath, e);
+            }
+        }
+
+        // ready before anything below can take long, onMessage may be called as soon as the plugin is started
+        kafkaPublisher = new KafkaMessagePublisher<>(new KafkaProducer<String, byte[]>(producerProps),
+                "sync".equalsIgnoreCase(producerMode), producerMaxInFlight, producerMaxBlockMs,
+                spillJournal == null ? null : this::spill);
+
+        if (isExactlyOnce()) {
+            transactionWorker = Executors.newSingleThreadScheduledExecutor();
+            // full transactions are committed on the worker as well, onMessage never waits for a commit
+            kafkaPublisher.enableTransactions(producerTransactionMaxRecords, transactionWorker);
+            transactionWorker.scheduleWithFixedDelay(kafkaPublisher::commitTransaction,
+                    producerTransactionIntervalMs, producerTransactionIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        if (spillJournal != null) {
+            spillFuture = worker.scheduleWithFixedDelay(this::drainSpillJournal,
+                    0, spillDrainIntervalMs, TimeUnit.MILLISECONDS);
+        }
 
+        if (latestStateBootstrapTopic != null) {
+            bootstrapLatestState(consumerProps);
+        }
+
+        // consumers share a group id, so each one is assigned its own set of partitions
+        executor = Executors.newFixedThreadPool(consumerThreads);
+        for (int i = 0; i < consumerThreads; i++) {
+            KafkaConsumerRunnable kafkaConsumer = KafkaConsumerRunnable.batched(new KafkaConsumer<String, byte[]>(consumerProps),
+                    kafkaConsumerTopic, this::onKafkaRecords, consumerDecodeThreads, consumerQueueHighWatermark,
+                    consumerQueueLowWatermark);
+            if (isAtLeastOnce()) {
+                kafkaConsumer.enableManualCommit(consumerCommitBatchSize, consumerCommitIntervalMs);
+            }
+            kafkaConsumers.add(kafkaConsumer);
+            executor.execute(kafkaConsumer);
+        }
 
-        kafkaConsumer = new KafkaConsumerRunnable(new KafkaConsumer<String, String>(props), kafkaConsumerTopic, this::onKafkaMessage);
-        executor.execute(kafkaConsumer);
+        if (latestStateTopic != null) {
+            latestStateFuture = worker.scheduleWithFixedDelay(this::expireLatestState,
+                    latestStateSweepIntervalMs, latestStateSweepIntervalMs, TimeUnit.MILLISECONDS);
+        }
 
-        kafkaProducer = new KafkaProducer<String, String>(props);
+        if (producerStatsIntervalMs > 0) {
+            statsFuture = worker.scheduleWithFixedDelay(this::logStats,
+                    producerStatsIntervalMs, producerStatsIntervalMs, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void stop() {
-        kafkaConsumer.stop();
+        kafkaConsumers.forEach(KafkaConsumerRunnable::stop);
         executor.shutdown();
+        try {
+            // wait for the consumers to leave the group before the producer is closed
+            if (!executor.awaitTermination(CONSUMER_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("kafka consumers did not stop within {} ms", CONSUMER_SHUTDOWN_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        kafkaConsumers.clear();
+
+        if (statsFuture != null) {
+            statsFuture.cancel(false);
+        }
 
-        kafkaProducer.close();
+        if (latestStateFuture != null) {
+            latestStateFuture.cancel(false);
+        }
+
+        if (spillFuture != null) {
+            spillFuture.cancel(false);
+        }
+
+        if (transactionWorker != null) {
+            // lets a commit in progress finish, close() commits the last transaction
+            transactionWorker.shutdown();
+            try {
+                if (!transactionWorker.awaitTermination(TRANSACTION_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    logger.warn("kafka transaction commit did not finish within {} ms", TRANSACTION_SHUTDOWN_TIMEOUT_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        kafkaPublisher.close();
+
+        // after the producer, records that fail while it closes are still spilled
+        if (spillJournal != null) {
+            spillExecutor.shutdown();
+            try {
+                if (!spillExecutor.awaitTermination(SPILL_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    logger.warn("spill journal appends did not finish within {} ms", SPILL_SHUTDOWN_TIMEOUT_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                spillJournal.close();
+            } catch (IOException e) {
+                logger.error("exception closing spill journal", e);
+            }
+        }
     }
-}
\ No newline at end of file
+}
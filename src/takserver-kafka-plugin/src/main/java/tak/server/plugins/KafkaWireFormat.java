@@ -0,0 +1,72 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import org.dom4j.DocumentException;
+import tak.server.plugins.messaging.MessageConverter;
+import tak.server.proto.StreamingProtoBufHelper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Encoding of TAK messages in Kafka record values.
+ */
+public enum KafkaWireFormat {
+
+    /**
+     * CoT XML, UTF-8 encoded. Byte-for-byte the same as the string values written by earlier versions of the plugin, for
+     * interoperability with non-TAK consumers and producers.
+     */
+    XML {
+        @Override
+        public byte[] encode(Message message) {
+            return StreamingProtoBufHelper.proto2cot(message.getPayload()).asXml().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Message decode(byte[] value, MessageConverter converter, Set<String> groups, String clientId)
+                throws DocumentException {
+            return converter.cotStringToDataMessage(new String(value, StandardCharsets.UTF_8), groups, clientId);
+        }
+    },
+
+    /**
+     * Serialized TAK proto {@link Message}. Skips CoT XML rendering and parsing in both directions.
+     */
+    PROTO {
+        @Override
+        public byte[] encode(Message message) {
+            return message.toByteArray();
+        }
+
+        @Override
+        public Message decode(byte[] value, MessageConverter converter, Set<String> groups, String clientId)
+                throws Exception {
+            Message.Builder builder = Message.parseFrom(value).toBuilder();
+
+            // groups and client id are assigned by this server, the same as for XML records
+            builder.clearGroups();
+            if (groups != null) {
+                builder.addAllGroups(groups);
+            }
+            builder.setClientId(clientId);
+
+            return builder.build();
+        }
+    };
+
+    public abstract byte[] encode(Message message);
+
+    public abstract Message decode(byte[] value, MessageConverter converter, Set<String> groups, String clientId)
+            throws Exception;
+
+    /**
+     * @param name the configured format name, case-insensitive. Null selects {@link #XML}.
+     */
+    public static KafkaWireFormat fromConfig(String name) {
+        if (name == null) {
+            return XML;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
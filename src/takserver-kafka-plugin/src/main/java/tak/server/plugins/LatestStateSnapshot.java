@@ -0,0 +1,87 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a log-compacted "latest state per UID" topic from the beginning up to its current end, keeping the last record
+ * of each key. Tombstones (null values) remove their key. The result is the current state of every track that has not
+ * gone stale, without replaying the full message history.
+ */
+public class LatestStateSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+
+    private LatestStateSnapshot() {
+    }
+
+    /**
+     * Loads the snapshot. The consumer is assigned all partitions of the topic and is not closed.
+     *
+     * @param consumer a consumer that is not subscribed to anything
+     * @param topic the compacted topic
+     * @param timeout maximum time to spend reading, a partial snapshot is returned if it is exceeded
+     * @return the latest record by key, in the order read within each partition
+     */
+    public static Map<String, ConsumerRecord<String, byte[]>> load(Consumer<String, byte[]> consumer, String topic,
+                                                                   Duration timeout) {
+        Map<String, ConsumerRecord<String, byte[]>> latest = new LinkedHashMap<>();
+
+        List<TopicPartition> partitions = new ArrayList<>();
+        for (PartitionInfo partition : consumer.partitionsFor(topic)) {
+            partitions.add(new TopicPartition(topic, partition.partition()));
+        }
+        consumer.assign(partitions);
+        consumer.seekToBeginning(partitions);
+
+        // records written after this point are live traffic, not part of the snapshot
+        Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        long records = 0;
+        while (!reachedEnd(consumer, endOffsets)) {
+            if (System.currentTimeMillis() > deadline) {
+                logger.warn("latest state snapshot of {} incomplete after {}, {} records read", topic, timeout, records);
+                break;
+            }
+            for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                records++;
+                if (record.key() == null) {
+                    continue;
+                }
+                if (record.value() == null) {
+                    latest.remove(record.key());
+                } else {
+                    // re-insert so the map stays in the order the records were written
+                    latest.remove(record.key());
+                    latest.put(record.key(), record);
+                }
+            }
+        }
+
+        logger.info("loaded latest state snapshot of {}: {} records read, {} keys", topic, records, latest.size());
+        return latest;
+    }
+
+    private static boolean reachedEnd(Consumer<String, byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+        for (Map.Entry<TopicPartition, Long> end : endOffsets.entrySet()) {
+            if (consumer.position(end.getKey()) < end.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,74 @@
+package tak.server.plugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded set of recently seen message fingerprints that expire after a fixed time. Used to recognize messages that the
+ * plugin has sent into TAK Server when they come back to it. Entries are evicted oldest first once the cache is full.
+ */
+public class RecentMessageCache {
+
+    private final int maxSize;
+    private final long ttlMs;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public RecentMessageCache(int maxSize, long ttlMs) {
+        this(maxSize, ttlMs, System::currentTimeMillis);
+    }
+
+    RecentMessageCache(int maxSize, long ttlMs, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Creates the fingerprint of a CoT event: its UID and time. Updates of a track have the same UID but a new time.
+     */
+    public static String fingerprint(String uid, long time) {
+        return uid + ':' + time;
+    }
+
+    public void add(String fingerprint) {
+        long now = clock.getAsLong();
+        if (expiries.put(fingerprint, now + ttlMs) == null) {
+            insertionOrder.add(fingerprint);
+            size.incrementAndGet();
+        }
+        evict(now);
+    }
+
+    public boolean contains(String fingerprint) {
+        Long expiry = expiries.get(fingerprint);
+        return expiry != null && expiry > clock.getAsLong();
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // removes the oldest entries while the cache is over capacity or they have expired. Only writers evict, lookups
+    // never block.
+    private synchronized void evict(long now) {
+        String oldest;
+        while ((oldest = insertionOrder.peek()) != null) {
+            Long expiry = expiries.get(oldest);
+            if (size.get() <= maxSize && expiry != null && expiry > now) {
+                return;
+            }
+            insertionOrder.poll();
+            expiries.remove(oldest);
+            size.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Memory-mapped journal of records that could not be handed to Kafka. Records are appended in order and read back from
+ * the head once the broker is reachable again, so nothing is held on the heap while the broker is down.
+ *
+ * <p>The file is a fixed-size ring of length-prefixed entries behind a small header holding the read and write
+ * positions, so a journal left behind by a stopped plugin is drained on the next start. When the ring is full, the
+ * {@link DropPolicy} decides whether the new record or the oldest ones are dropped. Records delivered while an earlier
+ * one failed are marked as delivered in place, and removed once they reach the head.
+ */
+public class SpillJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int MAGIC = 0x54414b4a;
+
+    // magic, entry count, read position, write position, used bytes
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRIES_OFFSET = 4;
+    private static final int READ_OFFSET = 8;
+    private static final int WRITE_OFFSET = 16;
+    private static final int USED_OFFSET = 24;
+
+    // entry length that marks the rest of the ring as unused, the next entry is at the start
+    private static final int WRAP = -1;
+    // set in the length of an entry that was delivered but is not at the head yet
+    private static final int DELIVERED = Integer.MIN_VALUE;
+    private static final int LENGTH_SIZE = Integer.BYTES;
+
+    // the whole file is mapped in one buffer
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE - HEADER_SIZE;
+
+    public enum DropPolicy {
+        DROP_NEWEST,
+        DROP_OLDEST;
+
+        public static DropPolicy fromConfig(String value) {
+            if (value == null) {
+                return DROP_NEWEST;
+            }
+            switch (value.toLowerCase()) {
+                case "dropnewest":
+                    return DROP_NEWEST;
+                case "dropoldest":
+                    return DROP_OLDEST;
+                default:
+                    throw new IllegalArgumentException("unknown spill drop policy: " + value);
+            }
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final DropPolicy dropPolicy;
+
+    // positions are relative to the end of the header
+    private int entries;
+    private int readPosition;
+    private int writePosition;
+    private int used;
+
+    private long appended;
+    private long drained;
+    private long dropped;
+
+    /**
+     * Opens the journal, recovering the entries of an existing file of the same size.
+     *
+     * @param path journal file
+     * @param capacity bytes available for entries
+     * @param dropPolicy what to drop when the journal is full
+     */
+    public SpillJournal(Path path, int capacity, DropPolicy dropPolicy) throws IOException {
+        if (capacity <= LENGTH_SIZE || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("spill journal capacity must be from " + (LENGTH_SIZE + 1) + " to "
+                    + MAX_CAPACITY + " bytes: " + capacity);
+        }
+        this.path = path;
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+
+        boolean existing = Files.exists(path) && Files.size(path) == HEADER_SIZE + (long) capacity;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+
+        if (existing && buffer.getInt(0) == MAGIC) {
+            entries = buffer.getInt(ENTRIES_OFFSET);
+            readPosition = (int) buffer.getLong(READ_OFFSET);
+            writePosition = (int) buffer.getLong(WRITE_OFFSET);
+            used = (int) buffer.getLong(USED_OFFSET);
+            logger.info("recovered spill journal {} with {} records", path, entries);
+        } else {
+            buffer.putInt(0, MAGIC);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Appends a record, dropping records according to the drop policy if the journal is full.
+     *
+     * @return false if the record was dropped
+     */
+    public synchronized boolean append(ProducerRecord<String, byte[]> record) {
+        byte[] topic = record.topic().getBytes(StandardCharsets.UTF_8);
+        byte[] key = record.key() == null ? null : record.key().getBytes(StandardCharsets.UTF_8);
+        int length = Short.BYTES + topic.length + Integer.BYTES + length(key) + Integer.BYTES + length(record.value())
+                + Short.BYTES;
+        List<byte[]> headerKeys = new ArrayList<>();
+        for (Header header : record.headers()) {
+            byte[] headerKey = header.key().getBytes(StandardCharsets.UTF_8);
+            headerKeys.add(headerKey);
+            length += Short.BYTES + headerKey.length + Integer.BYTES + length(header.value());
+        }
+
+        int required = LENGTH_SIZE + length;
+        if (required > capacity) {
+            dropped++;
+            return false;
+        }
+
+        while (!reserve(required)) {
+            if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                dropped++;
+                return false;
+            }
+            if (!skipEntry()) {
+                dropped++;
+            }
+        }
+
+        int position = HEADER_SIZE + writePosition;
+        buffer.putInt(position, length);
+        position += LENGTH_SIZE;
+        position = putShortBytes(position, topic);
+        position = putIntBytes(position, key);
+        position = putIntBytes(position, record.value());
+        buffer.putShort(position, (short) headerKeys.size());
+        position += Short.BYTES;
+        int i = 0;
+        for (Header header : record.headers()) {
+            position = putShortBytes(position, headerKeys.get(i++));
+            position = putIntBytes(position, header.value());
+        }
+
+        writePosition = advance(writePosition, required);
+        used += required;
+        entries++;
+        appended++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Reads records from the head of the journal without removing them, skipping the ones already delivered.
+     *
+     * @param max maximum number of records to read
+     */
+    public synchronized List<ProducerRecord<String, byte[]>> peek(int max) {
+        List<ProducerRecord<String, byte[]>> records = new ArrayList<>(Math.min(max, entries));
+        int read = readPosition;
+        for (int i = 0; i < entries && records.size() < max; i++) {
+            read = entryStart(read);
+            int position = HEADER_SIZE + read;
+            int length = buffer.getInt(position);
+            if ((length & DELIVERED) != 0) {
+                read = advance(read, LENGTH_SIZE + (length & ~DELIVERED));
+                continue;
+            }
+            position += LENGTH_SIZE;
+
+            byte[] topic = new byte[buffer.getShort(position)];
+            position = getBytes(position + Short.BYTES, topic);
+            byte[] key = getIntBytes(position);
+            position += Integer.BYTES + length(key);
+            byte[] value = getIntBytes(position);
+            position += Integer.BYTES + length(value);
+
+            RecordHeaders headers = new RecordHeaders();
+            short headerCount = buffer.getShort(position);
+            position += Short.BYTES;
+            for (int h = 0; h < headerCount; h++) {
+                byte[] headerKey = new byte[buffer.getShort(position)];
+                position = getBytes(position + Short.BYTES, headerKey);
+                byte[] headerValue = getIntBytes(position);
+                position += Integer.BYTES + length(headerValue);
+                headers.add(new String(headerKey, StandardCharsets.UTF_8), headerValue);
+            }
+
+            records.add(new ProducerRecord<>(new String(topic, StandardCharsets.UTF_8), null,
+                    key == null ? null : new String(key, StandardCharsets.UTF_8), value, headers));
+            read = advance(read, LENGTH_SIZE + length);
+        }
+        return records;
+    }
+
+    /**
+     * Removes records from the head of the journal, after they have been delivered.
+     *
+     * @param count number of records, in {@link #peek} order
+     */
+    public synchronized void remove(int count) {
+        BitSet delivered = new BitSet(count);
+        delivered.set(0, count);
+        remove(delivered);
+    }
+
+    /**
+     * Removes the records that were delivered. The ones behind a record that was not are marked, so that they are not
+     * read again, and removed once it is.
+     *
+     * @param delivered indexes of the delivered records, in {@link #peek} order
+     */
+    public synchronized void remove(BitSet delivered) {
+        int read = readPosition;
+        int index = 0;
+        for (int i = 0; i < entries && index < delivered.length(); i++) {
+            read = entryStart(read);
+            int length = buffer.getInt(HEADER_SIZE + read);
+            if ((length & DELIVERED) == 0 && delivered.get(index++)) {
+                buffer.putInt(HEADER_SIZE + read, length | DELIVERED);
+                drained++;
+            }
+            read = advance(read, LENGTH_SIZE + (length & ~DELIVERED));
+        }
+        while (entries > 0 && (buffer.getInt(HEADER_SIZE + entryStart(readPosition)) & DELIVERED) != 0) {
+            skipEntry();
+        }
+        writeHeader();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries == 0;
+    }
+
+    public synchronized int size() {
+        return entries;
+    }
+
+    public synchronized int getUsedBytes() {
+        return used;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    public synchronized long getDrained() {
+        return drained;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public void logStats() {
+        synchronized (this) {
+            logger.info("kafka spill journal {} - records: {} used bytes: {} of {} appended: {} drained: {} dropped: {}",
+                    path, entries, used, capacity, appended, drained, dropped);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Makes room for an entry at the write position, wrapping to the start of the ring if the end is too short.
+     *
+     * @return false if the journal has no room
+     */
+    private boolean reserve(int required) {
+        if (entries == 0) {
+            readPosition = 0;
+            writePosition = 0;
+            used = 0;
+            return true;
+        }
+
+        if (writePosition > readPosition) {
+            int tail = capacity - writePosition;
+            if (required <= tail) {
+                return true;
+            }
+            if (required > readPosition) {
+                return false;
+            }
+            if (tail >= LENGTH_SIZE) {
+                buffer.putInt(HEADER_SIZE + writePosition, WRAP);
+            }
+            used += tail;
+            writePosition = 0;
+        }
+
+        return writePosition < readPosition && required <= readPosition - writePosition;
+    }
+
+    // drops the entry at the head, and any wrap padding before it, returns whether it had been delivered
+    private boolean skipEntry() {
+        int start = entryStart(readPosition);
+        if (start != readPosition) {
+            used -= capacity - readPosition;
+        }
+        int length = buffer.getInt(HEADER_SIZE + start);
+        int size = LENGTH_SIZE + (length & ~DELIVERED);
+        readPosition = advance(start, size);
+        used -= size;
+        entries--;
+        return (length & DELIVERED) != 0;
+    }
+
+    private int entryStart(int position) {
+        if (capacity - position < LENGTH_SIZE || buffer.getInt(HEADER_SIZE + position) == WRAP) {
+            return 0;
+        }
+        return position;
+    }
+
+    private int advance(int position, int size) {
+        position += size;
+        return position == capacity ? 0 : position;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(ENTRIES_OFFSET, entries);
+        buffer.putLong(READ_OFFSET, readPosition);
+        buffer.putLong(WRITE_OFFSET, writePosition);
+        buffer.putLong(USED_OFFSET, used);
+    }
+
+    private int putShortBytes(int position, byte[] bytes) {
+        buffer.putShort(position, (short) bytes.length);
+        return putBytes(position + Short.BYTES, bytes);
+    }
+
+    private int putIntBytes(int position, byte[] bytes) {
+        buffer.putInt(position, bytes == null ? -1 : bytes.length);
+        return bytes == null ? position + Integer.BYTES : putBytes(position + Integer.BYTES, bytes);
+    }
+
+    private int putBytes(int position, byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(bytes);
+        return position + bytes.length;
+    }
+
+    private byte[] getIntBytes(int position) {
+        int length = buffer.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        getBytes(position + Integer.BYTES, bytes);
+        return bytes;
+    }
+
+    private int getBytes(int position, byte[] bytes) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(bytes);
+        return position + bytes.length;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+}
@@ -0,0 +1,39 @@
+package tak.server.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the stale time of the latest event of each UID, to find the tracks whose latest state has expired.
+ */
+public class StaleTracker {
+
+    private final ConcurrentHashMap<String, Long> staleTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Records the latest event of a UID, replacing any earlier stale time.
+     */
+    public void update(String uid, long staleTime) {
+        staleTimes.put(uid, staleTime);
+    }
+
+    /**
+     * Removes and returns the UIDs whose latest event is stale. A UID updated concurrently with a newer stale time is
+     * kept.
+     */
+    public List<String> expire(long now) {
+        List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : staleTimes.entrySet()) {
+            if (entry.getValue() <= now && staleTimes.remove(entry.getKey(), entry.getValue())) {
+                expired.add(entry.getKey());
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return staleTimes.size();
+    }
+}
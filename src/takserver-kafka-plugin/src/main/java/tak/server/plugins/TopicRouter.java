@@ -0,0 +1,164 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the Kafka topics a message is published to, from a table of routes. A route names a topic and any of:
+ *
+ * <ul>
+ *     <li>{@code types}: CoT types. A trailing {@code *} matches any type with that prefix, e.g. {@code a-f-*}.</li>
+ *     <li>{@code groups}: message groups</li>
+ *     <li>{@code destUids}: destination client UIDs</li>
+ * </ul>
+ *
+ * A route matches when the message matches every criterion the route specifies. Type patterns are compiled into a
+ * prefix trie and groups and UIDs into hash maps, each yielding a bitmask of the routes they match. Routing a message
+ * therefore costs one walk of its type plus one lookup per group and destination, regardless of the number of routes.
+ * At most 64 routes are supported.
+ */
+public class TopicRouter {
+
+    private static final int MAX_ROUTES = Long.SIZE;
+
+    private final List<String> routeTopics = new ArrayList<>();
+    private final TrieNode typeTrie = new TrieNode();
+    private final Map<String, Long> groupRoutes = new HashMap<>();
+    private final Map<String, Long> destUidRoutes = new HashMap<>();
+    private long typeRoutes;
+    private long groupRoutesMask;
+    private long destUidRoutesMask;
+
+    private final String defaultTopic;
+
+    // topic lists by matched route mask, there are only a few distinct combinations in practice
+    private final Map<Long, List<String>> topicsByMask = new ConcurrentHashMap<>();
+
+    /**
+     * @param routes route definitions from the plugin configuration
+     * @param defaultTopic topic for messages that match no route, or null to drop them
+     */
+    @SuppressWarnings("unchecked")
+    public TopicRouter(List<Map<String, Object>> routes, String defaultTopic) {
+        if (routes.size() > MAX_ROUTES) {
+            throw new IllegalArgumentException("at most " + MAX_ROUTES + " routes are supported, got " + routes.size());
+        }
+        this.defaultTopic = defaultTopic;
+
+        for (int i = 0; i < routes.size(); i++) {
+            Map<String, Object> route = routes.get(i);
+            long bit = 1L << i;
+
+            String topic = (String) route.get("topic");
+            if (topic == null) {
+                throw new IllegalArgumentException("route " + i + " has no topic");
+            }
+            routeTopics.add(topic);
+
+            List<String> types = (List<String>) route.get("types");
+            if (types != null) {
+                typeRoutes |= bit;
+                types.forEach(type -> addType(type, bit));
+            }
+
+            List<String> groups = (List<String>) route.get("groups");
+            if (groups != null) {
+                groupRoutesMask |= bit;
+                groups.forEach(group -> groupRoutes.merge(group, bit, (a, b) -> a | b));
+            }
+
+            List<String> destUids = (List<String>) route.get("destUids");
+            if (destUids != null) {
+                destUidRoutesMask |= bit;
+                destUids.forEach(uid -> destUidRoutes.merge(uid, bit, (a, b) -> a | b));
+            }
+        }
+    }
+
+    /**
+     * @return the topics for the message, in route order and without duplicates. Empty if the message matches no route
+     * and there is no default topic.
+     */
+    public List<String> route(Message message) {
+        long matched = routeTopics.size() == MAX_ROUTES ? -1L : (1L << routeTopics.size()) - 1;
+
+        if (typeRoutes != 0) {
+            matched &= matchType(message.getPayload().getCotEvent().getType()) | ~typeRoutes;
+        }
+
+        if (groupRoutesMask != 0) {
+            long groups = 0;
+            for (int i = 0; i < message.getGroupsCount(); i++) {
+                groups |= groupRoutes.getOrDefault(message.getGroups(i), 0L);
+            }
+            matched &= groups | ~groupRoutesMask;
+        }
+
+        if (destUidRoutesMask != 0) {
+            long destUids = 0;
+            for (int i = 0; i < message.getDestClientUidsCount(); i++) {
+                destUids |= destUidRoutes.getOrDefault(message.getDestClientUids(i), 0L);
+            }
+            matched &= destUids | ~destUidRoutesMask;
+        }
+
+        if (matched == 0) {
+            return defaultTopic == null ? Collections.emptyList() : Collections.singletonList(defaultTopic);
+        }
+
+        return topicsByMask.computeIfAbsent(matched, this::topics);
+    }
+
+    private List<String> topics(long mask) {
+        Set<String> topics = new LinkedHashSet<>();
+        for (int i = 0; i < routeTopics.size(); i++) {
+            if ((mask & (1L << i)) != 0) {
+                topics.add(routeTopics.get(i));
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(topics));
+    }
+
+    private void addType(String pattern, long bit) {
+        boolean prefix = pattern.endsWith("*");
+        String path = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+        TrieNode node = typeTrie;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.children.computeIfAbsent(path.charAt(i), c -> new TrieNode());
+        }
+
+        if (prefix) {
+            node.prefixRoutes |= bit;
+        } else {
+            node.exactRoutes |= bit;
+        }
+    }
+
+    private long matchType(String type) {
+        TrieNode node = typeTrie;
+        long routes = node.prefixRoutes;
+        for (int i = 0; i < type.length(); i++) {
+            node = node.children.get(type.charAt(i));
+            if (node == null) {
+                return routes;
+            }
+            routes |= node.prefixRoutes;
+        }
+        return routes | node.exactRoutes;
+    }
+
+    private static class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private long prefixRoutes;
+        private long exactRoutes;
+    }
+}
@@ -0,0 +1,76 @@
+package tak.server.plugins;
+
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class CotUidPartitionerTest {
+
+    private static final String TOPIC = "tak-pub";
+    private static final int PARTITIONS = 8;
+
+    private final CotUidPartitioner partitioner = new CotUidPartitioner();
+
+    private Cluster cluster;
+
+    @Before
+    public void setUp() {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitions = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions.add(new PartitionInfo(TOPIC, i, node, new Node[] {node}, new Node[] {node}));
+        }
+        cluster = new Cluster("cluster", Collections.singletonList(node), partitions, Collections.emptySet(),
+                Collections.emptySet());
+
+        Map<String, Object> configs = new HashMap<>();
+        configs.put(CotUidPartitioner.HOT_UIDS_CONFIG, "DRONE-1,DRONE-2");
+        configs.put(CotUidPartitioner.HOT_UID_SPREAD_CONFIG, "4");
+        partitioner.configure(configs);
+    }
+
+    @Test
+    public void partitionShouldKeepUidOnOnePartition() {
+        Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            partitions.add(partition("ANDROID-352413144215585"));
+        }
+        assertEquals(1, partitions.size());
+    }
+
+    @Test
+    public void partitionShouldSpreadHotUid() {
+        Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            partitions.add(partition("DRONE-1"));
+        }
+        assertEquals(4, partitions.size());
+    }
+
+    @Test
+    public void partitionShouldMatchHotUidInUidAndTypeKey() {
+        Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            partitions.add(partition("DRONE-2" + CotUidPartitioner.KEY_SEPARATOR + "a-f-A"));
+        }
+        assertEquals(4, partitions.size());
+    }
+
+    private int partition(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return partitioner.partition(TOPIC, key, keyBytes, null, new byte[0], cluster);
+    }
+}
@@ -0,0 +1,117 @@
+package tak.server.plugins;
+
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares producer compression codecs on a synthetic SA corpus. Records are batched with the same record batch builder
+ * the producer uses before sending a batch to the broker, so the sizes are what would go over the wire, without needing a
+ * broker. Reports compression ratio, throughput and CPU time per codec.
+ */
+public class KafkaCompressionBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int CORPUS_SIZE = 5000;
+    private static final int TRACKS = 200;
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final int ROUNDS = 3;
+
+    private static final CompressionType[] CODECS = {
+            CompressionType.NONE, CompressionType.GZIP, CompressionType.SNAPPY, CompressionType.LZ4, CompressionType.ZSTD
+    };
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void benchmarkCodecs() {
+        List<byte[]> corpus = createCorpus();
+        long uncompressed = corpus.stream().mapToLong(value -> value.length).sum();
+
+        for (CompressionType codec : CODECS) {
+            compress(codec, corpus); // warm up
+
+            long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            long compressed = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                compressed = compress(codec, corpus);
+            }
+            long elapsed = System.nanoTime() - start;
+            long cpu = threadMXBean.getCurrentThreadCpuTime() - cpuStart;
+
+            logger.info("{}: ratio {} ({} -> {} bytes), {} events/s, {} MB/s, {} us cpu per 1000 events",
+                    codec.name, String.format("%.3f", (double) compressed / uncompressed), uncompressed, compressed,
+                    (long) (ROUNDS * CORPUS_SIZE / (elapsed / 1e9)),
+                    String.format("%.1f", ROUNDS * uncompressed / (elapsed / 1e9) / (1024 * 1024)),
+                    cpu / 1000 / (ROUNDS * CORPUS_SIZE / 1000));
+
+            if (codec != CompressionType.NONE) {
+                assertTrue(compressed < uncompressed);
+            }
+        }
+    }
+
+    // builds producer-sized record batches and returns the total batch size in bytes
+    private static long compress(CompressionType codec, List<byte[]> corpus) {
+        long total = 0;
+        MemoryRecordsBuilder builder = null;
+        long timestamp = System.currentTimeMillis();
+        for (byte[] value : corpus) {
+            if (builder == null) {
+                builder = MemoryRecords.builder(ByteBuffer.allocate(BATCH_SIZE), RecordBatch.CURRENT_MAGIC_VALUE, codec,
+                        TimestampType.CREATE_TIME, 0L);
+            }
+            builder.append(timestamp, null, value);
+            if (builder.estimatedSizeInBytes() >= BATCH_SIZE) {
+                total += builder.build().sizeInBytes();
+                builder = null;
+            }
+        }
+        if (builder != null) {
+            total += builder.build().sizeInBytes();
+        }
+        return total;
+    }
+
+    // position reports from a fixed set of tracks moving around a point, similar to a busy SA feed
+    private static List<byte[]> createCorpus() {
+        Random random = new Random(42);
+        List<byte[]> corpus = new ArrayList<>(CORPUS_SIZE);
+        Instant time = Instant.parse("2020-02-12T13:16:07Z");
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            int track = random.nextInt(TRACKS);
+            Instant now = time.plusMillis(i * 50L);
+            String cot = "<event version=\"2.0\" uid=\"ANDROID-" + (352413144215585L + track) + "\" type=\"a-f-G-U-C\" how=\"m-g\""
+                    + " time=\"" + now + "\" start=\"" + now + "\" stale=\"" + now.plusSeconds(45) + "\">"
+                    + "<point lat=\"" + (40.255716 + random.nextGaussian() / 100) + "\" lon=\""
+                    + (-72.045306 + random.nextGaussian() / 100) + "\" hae=\"" + random.nextInt(500)
+                    + "\" ce=\"4.9\" le=\"9999999.0\"/><detail><__group name=\"Dark Blue\" role=\"Team Member\"/>"
+                    + "<precisionlocation geopointsrc=\"GPS\" altsrc=\"GPS\"/><status battery=\"" + random.nextInt(100)
+                    + "\"/><takv device=\"SAMSUNG SM-G975U1\" platform=\"ATAK-CIV\" os=\"29\" version=\"3.12.0-45691.45691-CIV\"/>"
+                    + "<track speed=\"" + random.nextInt(30) + ".0\" course=\"" + random.nextInt(360) + "\"/>"
+                    + "<contact endpoint=\"*:-1:stcp\" phone=\"19999999999\" callsign=\"track" + track + "\"/>"
+                    + "<uid Droid=\"track" + track + "\"/></detail></event>";
+            corpus.add(cot.getBytes(StandardCharsets.UTF_8));
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,524 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KafkaConsumerRunnableTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String TOPIC = "tak-sub";
+    private static final int PARTITIONS = 4;
+    private static final int RECORDS_PER_PARTITION = 2000;
+
+    // keeps the simulated work from being optimized away
+    private final AtomicLong sink = new AtomicLong();
+
+    @Test
+    public void runShouldDeliverRecordsAndCloseOnStop() throws Exception {
+        CountDownLatch received = new CountDownLatch(PARTITIONS * 10);
+        MockConsumer<String, byte[]> consumer = createConsumer(partitions(0, PARTITIONS), 10);
+
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> received.countDown());
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+
+        runnable.stop();
+        thread.join(10000);
+        assertTrue(consumer.closed());
+    }
+
+    @Test
+    public void decodeWorkersShouldPauseAndResumePartitionsAndKeepOrder() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Long> offsets = Collections.synchronizedList(new ArrayList<>());
+        MockConsumer<String, byte[]> consumer = createConsumer(partitions(0, 1), 100);
+
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            offsets.add(record.offset());
+        }, 2, 10, 2);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        waitFor(runnable::isPaused);
+        assertEquals(1, consumer.paused().size());
+
+        blocked.countDown();
+        waitFor(() -> !runnable.isPaused());
+        waitFor(() -> offsets.size() == 100);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (long) offsets.get(i));
+        }
+        assertTrue(consumer.paused().isEmpty());
+        assertEquals(1, runnable.getPauses());
+
+        runnable.stop();
+        thread.join(10000);
+        assertTrue(consumer.closed());
+    }
+
+    @Test
+    public void manualCommitShouldOnlyCommitProcessedRecords() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(50);
+        TopicPartition partition = new TopicPartition(TOPIC, 0);
+        MockConsumer<String, byte[]> consumer = createConsumer(Collections.singletonList(partition), 50);
+
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+            if (record.offset() == 20) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            received.countDown();
+        }, 1, 1000, 10);
+        runnable.enableManualCommit(5, 10);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        // the worker is stuck on offset 20, so nothing past it may be committed
+        waitFor(() -> committed(consumer, partition) == 20);
+        Thread.sleep(100);
+        assertEquals(20, committed(consumer, partition));
+
+        blocked.countDown();
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        waitFor(() -> committed(consumer, partition) == 50);
+
+        runnable.stop();
+        thread.join(10000);
+        assertEquals(0, runnable.getCommitFailures());
+    }
+
+    @Test
+    public void stopShouldCommitProcessedRecords() throws Exception {
+        CountDownLatch received = new CountDownLatch(10);
+        TopicPartition partition = new TopicPartition(TOPIC, 0);
+
+        // committed offsets can't be read back from a closed MockConsumer, so capture them as it is being closed
+        AtomicLong committedOnClose = new AtomicLong(-1);
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized void close() {
+                committedOnClose.set(KafkaConsumerRunnableTest.committed(this, partition));
+                super.close();
+            }
+        };
+        addRecords(consumer, Collections.singletonList(partition), 10);
+
+        // batch size and interval are never reached, only the final commit on stop applies
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> received.countDown());
+        runnable.enableManualCommit(1000, 60000);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(-1, committed(consumer, partition));
+
+        runnable.stop();
+        thread.join(10000);
+        assertEquals(10, committedOnClose.get());
+    }
+
+    @Test
+    public void stopShouldCommitDespitePendingWakeup() throws Exception {
+        CountDownLatch received = new CountDownLatch(10);
+        TopicPartition partition = new TopicPartition(TOPIC, 0);
+
+        // as KafkaConsumer, a wakeup that no poll consumed makes the next blocking call throw
+        AtomicBoolean pendingWakeup = new AtomicBoolean();
+        AtomicLong committedOnClose = new AtomicLong(-1);
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized void wakeup() {
+                pendingWakeup.set(true);
+            }
+
+            @Override
+            public synchronized void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+                if (pendingWakeup.getAndSet(false)) {
+                    throw new WakeupException();
+                }
+                super.commitSync(offsets);
+            }
+
+            @Override
+            public synchronized void close() {
+                committedOnClose.set(KafkaConsumerRunnableTest.committed(this, partition));
+                super.close();
+            }
+        };
+        addRecords(consumer, Collections.singletonList(partition), 10);
+
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> received.countDown());
+        runnable.enableManualCommit(1000, 60000);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        runnable.stop();
+        thread.join(10000);
+        assertEquals(10, committedOnClose.get());
+        assertEquals(0, runnable.getCommitFailures());
+    }
+
+    @Test
+    public void failedRecordShouldBeRetried() throws Exception {
+        List<TopicPartition> partitions = partitions(0, 2);
+        List<Long> seeks = new ArrayList<>();
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized void seek(TopicPartition partition, long offset) {
+                super.seek(partition, offset);
+                // the mock also seeks to reset new partitions to their beginning offsets
+                if (offset == 0) {
+                    return;
+                }
+                seeks.add(offset);
+                // the broker returns the records from the offset again
+                for (long next = offset; next < 10; next++) {
+                    addRecord(record(partition, next));
+                }
+            }
+        };
+        addRecords(consumer, partitions, 10);
+
+        List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean failing = new AtomicBoolean(true);
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+            if (record.partition() == 0) {
+                received.add(record.offset());
+                if (record.offset() == 5 && failing.getAndSet(false)) {
+                    throw new IllegalStateException("not sent");
+                }
+            }
+        });
+        runnable.enableManualCommit(1, 10);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        // the partition is committed past the failed record once it has been sent
+        waitFor(() -> committed(consumer, partitions.get(0)) == 10 && committed(consumer, partitions.get(1)) == 10);
+        runnable.stop();
+        thread.join(10000);
+
+        assertEquals(Arrays.asList(5L), seeks);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 5L, 6L, 7L, 8L, 9L), received);
+    }
+
+    @Test
+    public void recordFailingEveryAttemptShouldBeSkipped() throws Exception {
+        TopicPartition partition = new TopicPartition(TOPIC, 0);
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized void seek(TopicPartition partition, long offset) {
+                super.seek(partition, offset);
+                if (offset == 0) {
+                    return;
+                }
+                for (long next = offset; next < 10; next++) {
+                    addRecord(record(partition, next));
+                }
+            }
+        };
+        addRecords(consumer, Collections.singletonList(partition), 10);
+
+        AtomicLong attempts = new AtomicLong();
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+            if (record.offset() == 5) {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("not sent");
+            }
+        });
+        runnable.enableManualCommit(1, 10);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        waitFor(() -> committed(consumer, partition) == 10);
+        runnable.stop();
+        thread.join(10000);
+
+        assertEquals(KafkaConsumerRunnable.MAX_RECORD_ATTEMPTS, attempts.get());
+    }
+
+    @Test
+    public void revokedPartitionShouldNotBeCommitted() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(10);
+        CountDownLatch revoked = new CountDownLatch(1);
+        TopicPartition partition = new TopicPartition(TOPIC, 0);
+
+        AtomicReference<ConsumerRebalanceListener> listener = new AtomicReference<>();
+        MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener rebalanceListener) {
+                listener.set(rebalanceListener);
+                super.subscribe(topics, rebalanceListener);
+            }
+        };
+        addRecords(consumer, Collections.singletonList(partition), 10);
+
+        KafkaConsumerRunnable runnable = new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+            if (record.offset() == 5) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            received.countDown();
+        }, 1, 1000, 10);
+        runnable.enableManualCommit(1, 10);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        waitFor(() -> committed(consumer, partition) == 5);
+        consumer.schedulePollTask(() -> {
+            listener.get().onPartitionsRevoked(Collections.singletonList(partition));
+            revoked.countDown();
+        });
+        assertTrue(revoked.await(10, TimeUnit.SECONDS));
+
+        // the new owner commits its progress, while the revoked records still queued here are sent
+        consumer.commitSync(Collections.singletonMap(partition, new OffsetAndMetadata(8)));
+        blocked.countDown();
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(8, committed(consumer, partition));
+
+        runnable.stop();
+        thread.join(10000);
+    }
+
+    @Test
+    public void batchedShouldDeliverEachPartitionInOrderAndCommitIt() throws Exception {
+        List<TopicPartition> partitions = partitions(0, PARTITIONS);
+        MockConsumer<String, byte[]> consumer = createConsumer(partitions, 10);
+        Map<Integer, List<Long>> offsets = new ConcurrentHashMap<>();
+        CountDownLatch received = new CountDownLatch(PARTITIONS * 10);
+
+        KafkaConsumerRunnable runnable = KafkaConsumerRunnable.batched(consumer, TOPIC, records -> {
+            // with decode workers, a batch holds the records of one partition
+            int partition = records.get(0).partition();
+            for (ConsumerRecord<String, byte[]> record : records) {
+                assertEquals(partition, record.partition());
+                offsets.computeIfAbsent(partition, p -> new ArrayList<>()).add(record.offset());
+                received.countDown();
+            }
+        }, 2, 1000, 10);
+        runnable.enableManualCommit(1, 10);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        for (TopicPartition partition : partitions) {
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), offsets.get(partition.partition()));
+            waitFor(() -> committed(consumer, partition) == 10);
+        }
+
+        runnable.stop();
+        thread.join(10000);
+    }
+
+    @Test
+    public void batchedWithoutWorkersShouldDeliverWholePoll() throws Exception {
+        List<TopicPartition> partitions = partitions(0, PARTITIONS);
+        MockConsumer<String, byte[]> consumer = createConsumer(partitions, 10);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        KafkaConsumerRunnable runnable = KafkaConsumerRunnable.batched(consumer, TOPIC,
+                records -> batchSizes.add(records.size()), 0, 0, 0);
+        runnable.enableManualCommit(1, 10);
+        Thread thread = new Thread(runnable);
+        thread.start();
+
+        for (TopicPartition partition : partitions) {
+            waitFor(() -> committed(consumer, partition) == 10);
+        }
+        assertEquals(Collections.singletonList(PARTITIONS * 10), batchSizes);
+
+        runnable.stop();
+        thread.join(10000);
+    }
+
+    @Test
+    public void benchmarkBatchConversion() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        runBatched(false); // warm up
+        runBatched(true);
+        long perRecord = runBatched(false);
+        long parallel = runBatched(true);
+        logger.info("{} cores, {} records: per record {} ms, parallel batch {} ms", cores,
+                PARTITIONS * RECORDS_PER_PARTITION, perRecord, parallel);
+    }
+
+    // one consumer without decode workers, converting records one at a time or each poll's batch in parallel
+    private long runBatched(boolean parallel) throws Exception {
+        CountDownLatch received = new CountDownLatch(PARTITIONS * RECORDS_PER_PARTITION);
+        MockConsumer<String, byte[]> consumer = createConsumer(partitions(0, PARTITIONS), RECORDS_PER_PARTITION);
+        KafkaConsumerRunnable runnable = parallel
+                ? KafkaConsumerRunnable.batched(consumer, TOPIC, records -> {
+                    // converted in parallel, then handed on in order
+                    List<Long> converted = records.parallelStream().map(KafkaConsumerRunnableTest::work)
+                            .collect(Collectors.toList());
+                    converted.forEach(hash -> {
+                        sink.addAndGet(hash);
+                        received.countDown();
+                    });
+                }, 0, 0, 0)
+                : new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+                    sink.addAndGet(work(record));
+                    received.countDown();
+                });
+
+        Thread thread = new Thread(runnable);
+        long start = System.nanoTime();
+        thread.start();
+        assertTrue(received.await(60, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        runnable.stop();
+        thread.join(10000);
+        return elapsed;
+    }
+
+    /**
+     * Each consumer owns an equal share of the partitions, as it would after a group rebalance. Records carry a fixed
+     * amount of decode work, so elapsed time should drop close to linearly as consumers are added (up to the number of
+     * cores and partitions).
+     */
+    @Test
+    public void benchmarkConsumerThreads() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        run(1); // warm up
+        for (int threads = 1; threads <= PARTITIONS; threads *= 2) {
+            long elapsed = run(threads);
+            logger.info("{} consumer thread(s), {} cores: {} records in {} ms, {} records/s", threads, cores,
+                    PARTITIONS * RECORDS_PER_PARTITION, elapsed,
+                    PARTITIONS * RECORDS_PER_PARTITION * 1000L / Math.max(elapsed, 1));
+        }
+    }
+
+    private long run(int threads) throws Exception {
+        CountDownLatch received = new CountDownLatch(PARTITIONS * RECORDS_PER_PARTITION);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<KafkaConsumerRunnable> runnables = new ArrayList<>();
+
+        int partitionsPerConsumer = PARTITIONS / threads;
+        for (int i = 0; i < threads; i++) {
+            MockConsumer<String, byte[]> consumer = createConsumer(
+                    partitions(i * partitionsPerConsumer, partitionsPerConsumer), RECORDS_PER_PARTITION);
+            runnables.add(new KafkaConsumerRunnable(consumer, TOPIC, record -> {
+                sink.addAndGet(work(record));
+                received.countDown();
+            }));
+        }
+
+        long start = System.nanoTime();
+        runnables.forEach(executor::execute);
+        assertTrue(received.await(60, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        runnables.forEach(KafkaConsumerRunnable::stop);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        return elapsed;
+    }
+
+    // MockConsumer.committed() is synchronized, so this is safe to call while the consumer is being polled
+    private static long committed(MockConsumer<String, byte[]> consumer, TopicPartition partition) {
+        OffsetAndMetadata offset = consumer.committed(Collections.singleton(partition)).get(partition);
+        return offset == null ? -1 : offset.offset();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // stands in for converting a record into a TAK message
+    private static long work(ConsumerRecord<String, byte[]> record) {
+        long hash = record.offset();
+        for (int i = 0; i < 20000; i++) {
+            hash = hash * 31 + record.value()[i % record.value().length];
+        }
+        return hash;
+    }
+
+    private static List<TopicPartition> partitions(int first, int count) {
+        List<TopicPartition> partitions = new ArrayList<>();
+        for (int i = first; i < first + count; i++) {
+            partitions.add(new TopicPartition(TOPIC, i));
+        }
+        return partitions;
+    }
+
+    private static MockConsumer<String, byte[]> createConsumer(List<TopicPartition> partitions, int recordsPerPartition) {
+        return addRecords(new MockConsumer<>(OffsetResetStrategy.EARLIEST), partitions, recordsPerPartition);
+    }
+
+    private static MockConsumer<String, byte[]> addRecords(MockConsumer<String, byte[]> consumer,
+                                                           List<TopicPartition> partitions, int recordsPerPartition) {
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(partitions);
+            Map<TopicPartition, Long> beginningOffsets = new HashMap<>();
+            partitions.forEach(tp -> beginningOffsets.put(tp, 0L));
+            consumer.updateBeginningOffsets(beginningOffsets);
+            for (TopicPartition tp : partitions) {
+                for (int offset = 0; offset < recordsPerPartition; offset++) {
+                    consumer.addRecord(record(tp, offset));
+                }
+            }
+        });
+        return consumer;
+    }
+
+    private static ConsumerRecord<String, byte[]> record(TopicPartition partition, long offset) {
+        return new ConsumerRecord<>(TOPIC, partition.partition(), offset, "uid-" + offset,
+                ("<event uid=\"uid-" + offset + "\"/>").getBytes());
+    }
+}
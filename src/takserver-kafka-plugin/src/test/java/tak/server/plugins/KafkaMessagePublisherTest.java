@@ -0,0 +1,240 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KafkaMessagePublisherTest {
+
+    private static final String TOPIC = "tak-pub";
+
+    @Test
+    public void publishShouldCountAcknowledgedRecords() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(publisher.publish(new ProducerRecord<>(TOPIC, "event" + i)));
+        }
+
+        assertEquals(5, publisher.getSent());
+        assertEquals(5, publisher.getAcknowledged());
+        assertEquals(0, publisher.getInFlight());
+        assertEquals(5, producer.history().size());
+    }
+
+    @Test
+    public void publishShouldRejectWhenInFlightLimitReached() {
+        MockProducer<String, String> producer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 2, 0);
+
+        assertTrue(publisher.publish(new ProducerRecord<>(TOPIC, "a")));
+        assertTrue(publisher.publish(new ProducerRecord<>(TOPIC, "b")));
+        assertFalse(publisher.publish(new ProducerRecord<>(TOPIC, "c")));
+
+        assertEquals(2, publisher.getInFlight());
+        assertEquals(1, publisher.getRejected());
+
+        // acknowledging a record frees its slot
+        producer.completeNext();
+        assertTrue(publisher.publish(new ProducerRecord<>(TOPIC, "d")));
+        assertEquals(2, publisher.getInFlight());
+    }
+
+    @Test
+    public void publishShouldCountDeliveryFailuresWithoutBlocking() {
+        MockProducer<String, String> producer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0);
+
+        publisher.publish(new ProducerRecord<>(TOPIC, "a"));
+        publisher.publish(new ProducerRecord<>(TOPIC, "b"));
+        producer.errorNext(new RuntimeException("broker unavailable"));
+        producer.completeNext();
+
+        assertEquals(1, publisher.getFailed());
+        assertEquals(1, publisher.getAcknowledged());
+        assertEquals(0, publisher.getInFlight());
+    }
+
+    @Test
+    public void publishShouldReturnFalseWhenSendThrows() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        List<ProducerRecord<String, String>> spilled = new ArrayList<>();
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0, spilled::add);
+
+        // send() times out waiting for metadata while the broker is unreachable
+        producer.sendException = new TimeoutException("broker unavailable");
+        assertFalse(publisher.publish(new ProducerRecord<>(TOPIC, "a")));
+
+        assertEquals(1, publisher.getFailed());
+        assertEquals(0, publisher.getInFlight());
+        assertEquals(Arrays.asList("a"), values(spilled));
+    }
+
+    @Test
+    public void failedRecordsShouldGoToFailureHandler() {
+        MockProducer<String, String> producer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        List<ProducerRecord<String, String>> spilled = new ArrayList<>();
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 1, 0, spilled::add);
+
+        publisher.publish(new ProducerRecord<>(TOPIC, "a"));
+        publisher.publish(new ProducerRecord<>(TOPIC, "b"));
+        assertFalse(publisher.isHealthy());
+
+        producer.errorNext(new RuntimeException("broker unavailable"));
+
+        assertEquals(Arrays.asList("b", "a"), values(spilled));
+    }
+
+    @Test
+    public void sendAndWaitShouldReportDeliveredRecordsAndRestoreHealth() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0, record -> { });
+        List<ProducerRecord<String, String>> records = Arrays.asList(new ProducerRecord<>(TOPIC, "a"),
+                new ProducerRecord<>(TOPIC, "b"));
+
+        // send() times out waiting for metadata while the broker is unreachable
+        producer.sendException = new TimeoutException("broker unavailable");
+        assertEquals(0, publisher.sendAndWait(records, 100).cardinality());
+        assertFalse(publisher.isHealthy());
+
+        producer.sendException = null;
+        assertEquals(2, publisher.sendAndWait(records, 100).cardinality());
+        assertTrue(publisher.isHealthy());
+        assertEquals(2, publisher.getAcknowledged());
+    }
+
+    @Test
+    public void sendAndWaitShouldReportEachDeliveredRecord() {
+        // the broker fails the second record only
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer()) {
+            @Override
+            public synchronized Future<RecordMetadata> send(ProducerRecord<String, String> record) {
+                if ("b".equals(record.value())) {
+                    return CompletableFuture.failedFuture(new TimeoutException("broker unavailable"));
+                }
+                return super.send(record);
+            }
+        };
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0, record -> { });
+        List<ProducerRecord<String, String>> records = Arrays.asList(new ProducerRecord<>(TOPIC, "a"),
+                new ProducerRecord<>(TOPIC, "b"), new ProducerRecord<>(TOPIC, "c"));
+
+        BitSet delivered = publisher.sendAndWait(records, 100);
+
+        assertEquals("{0, 2}", delivered.toString());
+        assertFalse(publisher.isHealthy());
+        assertEquals(2, publisher.getAcknowledged());
+        assertEquals(1, publisher.getFailed());
+    }
+
+    @Test
+    public void transactionShouldCommitWhenFullOrOnRequest() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0);
+        publisher.enableTransactions(3, Runnable::run);
+
+        for (String value : Arrays.asList("a", "b", "c", "d")) {
+            publisher.publish(new ProducerRecord<>(TOPIC, value));
+        }
+
+        // read_committed consumers only see the first, full transaction
+        assertEquals(1, publisher.getTransactionsCommitted());
+        assertEquals(3, producer.history().size());
+        assertEquals(3, publisher.getAcknowledged());
+
+        assertTrue(publisher.commitTransaction());
+        assertEquals(2, publisher.getTransactionsCommitted());
+        assertEquals(4, publisher.getAcknowledged());
+        assertEquals(Arrays.asList("a", "b", "c", "d"), values(producer.history()));
+
+        // nothing to commit
+        assertTrue(publisher.commitTransaction());
+        assertEquals(2, publisher.getTransactionsCommitted());
+    }
+
+    @Test
+    public void fullTransactionShouldBeCommittedOnTheCommitter() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0);
+        List<Runnable> commits = new ArrayList<>();
+        publisher.enableTransactions(2, commits::add);
+
+        for (String value : Arrays.asList("a", "b", "c")) {
+            publisher.publish(new ProducerRecord<>(TOPIC, value));
+        }
+
+        // the publishing thread only asks for the commit, once
+        assertEquals(1, commits.size());
+        assertEquals(0, publisher.getTransactionsCommitted());
+        assertTrue(producer.history().isEmpty());
+
+        commits.get(0).run();
+        assertEquals(1, publisher.getTransactionsCommitted());
+        assertEquals(3, publisher.getAcknowledged());
+
+        publisher.publish(new ProducerRecord<>(TOPIC, "d"));
+        publisher.publish(new ProducerRecord<>(TOPIC, "e"));
+        assertEquals(2, commits.size());
+    }
+
+    @Test
+    public void abortedTransactionShouldGoToFailureHandler() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        List<ProducerRecord<String, String>> spilled = new ArrayList<>();
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0, spilled::add);
+        publisher.enableTransactions(100, Runnable::run);
+
+        publisher.publish(new ProducerRecord<>(TOPIC, "a"));
+        publisher.publish(new ProducerRecord<>(TOPIC, "b"));
+        producer.commitTransactionException = new KafkaException("broker unavailable");
+        assertFalse(publisher.commitTransaction());
+
+        assertEquals(Arrays.asList("a", "b"), values(spilled));
+        assertEquals(1, publisher.getTransactionsAborted());
+        assertEquals(0, publisher.getAcknowledged());
+        assertTrue(producer.history().isEmpty());
+
+        producer.commitTransactionException = null;
+        assertEquals(2, publisher.sendAndWait(spilled, 100).cardinality());
+        assertTrue(publisher.isHealthy());
+        assertEquals(Arrays.asList("a", "b"), values(producer.history()));
+    }
+
+    @Test
+    public void fencedProducerShouldRejectRecords() {
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        List<ProducerRecord<String, String>> spilled = new ArrayList<>();
+        KafkaMessagePublisher<String, String> publisher = new KafkaMessagePublisher<>(producer, false, 10, 0, spilled::add);
+        publisher.enableTransactions(100, Runnable::run);
+
+        publisher.publish(new ProducerRecord<>(TOPIC, "a"));
+        producer.fenceProducer();
+        assertFalse(publisher.commitTransaction());
+        assertFalse(publisher.publish(new ProducerRecord<>(TOPIC, "b")));
+
+        assertEquals(Arrays.asList("a", "b"), values(spilled));
+        assertEquals(0, publisher.sendAndWait(spilled, 100).cardinality());
+    }
+
+    private static List<String> values(List<ProducerRecord<String, String>> records) {
+        List<String> values = new ArrayList<>();
+        records.forEach(record -> values.add(record.value()));
+        return values;
+    }
+}
@@ -0,0 +1,150 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the async and exactlyOnce producer modes. A MockProducer stands in for the broker, with a fixed delay for
+ * each acknowledgement round in async mode and for each transaction commit in exactlyOnce mode. Reports throughput and
+ * the latency until a record is visible to consumers: acknowledged for async, committed for read_committed consumers.
+ */
+public class KafkaTransactionBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int RECORDS = 50000;
+    private static final long BROKER_ROUND_TRIP_MS = 2;
+    private static final long TRANSACTION_INTERVAL_MS = 20;
+
+    private static final byte[] VALUE = ("<event version=\"2.0\" uid=\"ANDROID-352413144215585\" type=\"a-f-G-U-C\" how=\"m-g\">"
+            + "<point lat=\"42.0\" lon=\"-71.0\" hae=\"0.0\" ce=\"9999999\" le=\"9999999\"/></event>")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void benchmarkProducerModes() throws Exception {
+        run(0); // warm up
+        report("async", run(0));
+        for (int maxRecords : new int[] {100, 1000, 10000}) {
+            report("exactlyOnce, " + maxRecords + " records per transaction", run(maxRecords));
+        }
+    }
+
+    private static void report(String mode, SimulatedBroker broker) {
+        logger.info("{}: {} records/s, mean latency {} ms, max latency {} ms", mode,
+                RECORDS * 1000L / Math.max(broker.elapsedMs, 1),
+                String.format("%.2f", broker.latencyNanos.sum() / 1e6 / RECORDS),
+                String.format("%.2f", broker.maxLatencyNanos / 1e6));
+    }
+
+    // maxRecords 0 runs in async mode
+    private SimulatedBroker run(int maxRecords) throws Exception {
+        SimulatedBroker broker = new SimulatedBroker();
+        KafkaMessagePublisher<String, byte[]> publisher = new KafkaMessagePublisher<>(broker, false, RECORDS, 0);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        if (maxRecords > 0) {
+            publisher.enableTransactions(maxRecords, Runnable::run);
+            timer.scheduleWithFixedDelay(publisher::commitTransaction, TRANSACTION_INTERVAL_MS, TRANSACTION_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            timer.scheduleWithFixedDelay(broker::acknowledge, BROKER_ROUND_TRIP_MS, BROKER_ROUND_TRIP_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            publisher.publish(new ProducerRecord<>("tak-audit", "ANDROID-" + (i % 100), VALUE));
+        }
+        while (broker.visible.sum() < RECORDS) {
+            Thread.sleep(1);
+        }
+        broker.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        timer.shutdown();
+        timer.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(RECORDS, broker.history().size());
+        return broker;
+    }
+
+    private static class SimulatedBroker extends MockProducer<String, byte[]> {
+
+        private final Queue<Long> sendTimes = new ArrayDeque<>();
+        private final LongAdder visible = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private volatile long maxLatencyNanos;
+        private long elapsedMs;
+        private final AtomicBoolean transactional = new AtomicBoolean();
+
+        SimulatedBroker() {
+            super(false, new StringSerializer(), new ByteArraySerializer());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+            sendTimes.add(System.nanoTime());
+            return super.send(record, callback);
+        }
+
+        @Override
+        public void initTransactions() {
+            transactional.set(true);
+            super.initTransactions();
+        }
+
+        @Override
+        public synchronized void commitTransaction() {
+            sleep();
+            super.commitTransaction();
+            recordVisible();
+        }
+
+        // one acknowledgement round for the records sent so far
+        void acknowledge() {
+            sleep();
+            synchronized (this) {
+                while (completeNext()) {
+                    // completes in send order
+                }
+                recordVisible();
+            }
+        }
+
+        private void recordVisible() {
+            long now = System.nanoTime();
+            Long sendTime;
+            while ((sendTime = sendTimes.poll()) != null) {
+                long latency = now - sendTime;
+                latencyNanos.add(latency);
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                visible.increment();
+            }
+        }
+
+        private static void sleep() {
+            try {
+                Thread.sleep(BROKER_ROUND_TRIP_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
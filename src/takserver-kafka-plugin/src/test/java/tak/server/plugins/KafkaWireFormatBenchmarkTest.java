@@ -0,0 +1,75 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import org.dom4j.DocumentException;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tak.server.plugins.messaging.MessageConverter;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the XML and proto wire formats: bytes per event and round-trip (encode + decode) events per second.
+ */
+public class KafkaWireFormatBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int WARMUP = 1000;
+    private static final int ITERATIONS = 5000;
+
+    private static final String SA = "<event version=\"2.0\" uid=\"ANDROID-352413144215585\" type=\"a-f-G-U-C\" how=\"m-g\" time=\"2020-02-12T13:16:07Z\" start=\"2020-02-12T13:16:05Z\" stale=\"2020-02-12T13:16:50Z\"><point lat=\"40.255716\" lon=\"-72.045306\" hae=\"-22.22983896651138\" ce=\"4.9\" le=\"9999999.0\"/><detail><__group name=\"Dark Blue\" role=\"Team Member\"/><precisionlocation geopointsrc=\"GPS\" altsrc=\"GPS\"/><status battery=\"32\"/><takv device=\"SAMSUNG SM-G975U1\" platform=\"ATAK-CIV\" os=\"29\" version=\"3.12.0-45691.45691-CIV\"/><track speed=\"0.0\" course=\"344.72362164876733\"/><contact endpoint=\"*:-1:stcp\" phone=\"19999999999\" callsign=\"coolata\"/><uid Droid=\"coolata\"/></detail></event>";
+
+    private final MessageConverter converter = new MessageConverter();
+
+    private final Set<String> groups = new HashSet<>();
+
+    @Test
+    public void protoShouldRoundTripMessage() throws Exception {
+        Message message = createMessage();
+
+        Message decoded = KafkaWireFormat.PROTO.decode(KafkaWireFormat.PROTO.encode(message), converter, groups, "1");
+
+        assertEquals(message.getPayload(), decoded.getPayload());
+    }
+
+    @Test
+    public void benchmarkXmlAgainstProto() throws Exception {
+        Message message = createMessage();
+
+        long xmlBytes = run(KafkaWireFormat.XML, message);
+        long protoBytes = run(KafkaWireFormat.PROTO, message);
+
+        assertTrue(protoBytes < xmlBytes);
+    }
+
+    private long run(KafkaWireFormat format, Message message) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            format.decode(format.encode(message), converter, groups, "1");
+        }
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] value = format.encode(message);
+            bytes += value.length;
+            format.decode(value, converter, groups, "1");
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long bytesPerEvent = bytes / ITERATIONS;
+        logger.info("{}: {} bytes/event, {} events/s", format, bytesPerEvent, (long) (ITERATIONS / (elapsed / 1e9)));
+
+        return bytesPerEvent;
+    }
+
+    private Message createMessage() throws DocumentException {
+        return converter.cotStringToDataMessage(SA, groups, Integer.toString(System.identityHashCode(this)));
+    }
+}
@@ -0,0 +1,84 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatestStateSnapshotTest {
+
+    private static final String TOPIC = "tak-latest";
+
+    private final MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    private final TopicPartition partition0 = new TopicPartition(TOPIC, 0);
+    private final TopicPartition partition1 = new TopicPartition(TOPIC, 1);
+
+    @Test
+    public void loadShouldKeepLatestRecordOfEachKey() {
+        partitions(5, 1);
+        consumer.schedulePollTask(() -> {
+            add(partition0, 0, "ANDROID-1", "1");
+            add(partition0, 1, "ANDROID-2", "1");
+            add(partition0, 2, "ANDROID-1", "2");
+            add(partition0, 3, "ANDROID-3", "1");
+            add(partition0, 4, "ANDROID-3", null);
+            add(partition1, 0, "ANDROID-4", "1");
+        });
+
+        Map<String, ConsumerRecord<String, byte[]>> snapshot = LatestStateSnapshot.load(consumer, TOPIC, Duration.ofSeconds(5));
+
+        assertEquals(new HashSet<>(Arrays.asList("ANDROID-1", "ANDROID-2", "ANDROID-4")), snapshot.keySet());
+        assertEquals("2", new String(snapshot.get("ANDROID-1").value(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void loadShouldStopAtEndOffsetsOfEmptyTopic() {
+        partitions(0, 0);
+
+        assertTrue(LatestStateSnapshot.load(consumer, TOPIC, Duration.ofSeconds(5)).isEmpty());
+    }
+
+    @Test
+    public void loadShouldReturnPartialSnapshotOnTimeout() {
+        partitions(2, 0);
+        consumer.schedulePollTask(() -> add(partition0, 0, "ANDROID-1", "1"));
+
+        Map<String, ConsumerRecord<String, byte[]>> snapshot = LatestStateSnapshot.load(consumer, TOPIC, Duration.ofMillis(200));
+
+        assertEquals(Collections.singleton("ANDROID-1"), snapshot.keySet());
+    }
+
+    private void partitions(long end0, long end1) {
+        consumer.updatePartitions(TOPIC, Arrays.asList(
+                new PartitionInfo(TOPIC, 0, null, null, null),
+                new PartitionInfo(TOPIC, 1, null, null, null)));
+
+        Map<TopicPartition, Long> beginning = new HashMap<>();
+        beginning.put(partition0, 0L);
+        beginning.put(partition1, 0L);
+        consumer.updateBeginningOffsets(beginning);
+
+        Map<TopicPartition, Long> end = new HashMap<>();
+        end.put(partition0, end0);
+        end.put(partition1, end1);
+        consumer.updateEndOffsets(end);
+    }
+
+    private void add(TopicPartition partition, long offset, String uid, String value) {
+        consumer.addRecord(new ConsumerRecord<>(TOPIC, partition.partition(), offset, uid,
+                value == null ? null : value.getBytes(StandardCharsets.UTF_8)));
+    }
+}
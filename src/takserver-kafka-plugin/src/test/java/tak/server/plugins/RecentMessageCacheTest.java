@@ -0,0 +1,60 @@
+package tak.server.plugins;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecentMessageCacheTest {
+
+    private final AtomicLong clock = new AtomicLong(1000);
+
+    @Test
+    public void containsShouldMatchAddedFingerprint() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1000, clock::get);
+
+        cache.add(RecentMessageCache.fingerprint("ANDROID-352413144215585", 1581513367000L));
+
+        assertTrue(cache.contains(RecentMessageCache.fingerprint("ANDROID-352413144215585", 1581513367000L)));
+        assertFalse(cache.contains(RecentMessageCache.fingerprint("ANDROID-352413144215585", 1581513368000L)));
+    }
+
+    @Test
+    public void containsShouldNotMatchExpiredFingerprint() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1000, clock::get);
+
+        cache.add("a:1");
+        clock.addAndGet(1000);
+
+        assertFalse(cache.contains("a:1"));
+    }
+
+    @Test
+    public void addShouldEvictOldestWhenFull() {
+        RecentMessageCache cache = new RecentMessageCache(3, 1000, clock::get);
+
+        for (int i = 0; i < 5; i++) {
+            cache.add("uid:" + i);
+        }
+
+        assertEquals(3, cache.size());
+        assertFalse(cache.contains("uid:0"));
+        assertFalse(cache.contains("uid:1"));
+        assertTrue(cache.contains("uid:4"));
+    }
+
+    @Test
+    public void addShouldEvictExpiredEntries() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1000, clock::get);
+
+        cache.add("a:1");
+        cache.add("b:1");
+        clock.addAndGet(2000);
+        cache.add("c:1");
+
+        assertEquals(1, cache.size());
+    }
+}
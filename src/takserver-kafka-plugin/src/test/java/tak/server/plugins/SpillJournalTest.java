@@ -0,0 +1,203 @@
+package tak.server.plugins;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillJournalTest {
+
+    private static final String TOPIC = "tak-pub";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpillJournal journal;
+
+    @After
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void peekShouldReturnRecordsInAppendOrder() throws IOException {
+        journal = new SpillJournal(file(), 4096, SpillJournal.DropPolicy.DROP_NEWEST);
+
+        ProducerRecord<String, byte[]> record = record("ANDROID-1", "a");
+        record.headers().add("tak-origin", "server-1".getBytes(StandardCharsets.UTF_8));
+        journal.append(record);
+        journal.append(new ProducerRecord<>(TOPIC, null, null));
+        journal.append(record("ANDROID-2", "b"));
+
+        List<ProducerRecord<String, byte[]>> records = journal.peek(10);
+        assertEquals(3, records.size());
+        assertEquals(TOPIC, records.get(0).topic());
+        assertEquals("ANDROID-1", records.get(0).key());
+        assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), records.get(0).value());
+        assertArrayEquals("server-1".getBytes(StandardCharsets.UTF_8), records.get(0).headers().lastHeader("tak-origin").value());
+        assertNull(records.get(1).key());
+        assertNull(records.get(1).value());
+        assertEquals("ANDROID-2", records.get(2).key());
+
+        journal.remove(2);
+        assertEquals(Arrays.asList("b"), values(journal.peek(10)));
+        assertEquals(2, journal.getDrained());
+    }
+
+    @Test
+    public void appendShouldWrapAroundTheRing() throws IOException {
+        journal = new SpillJournal(file(), 200, SpillJournal.DropPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(journal.append(record("ANDROID-1", "event" + i)));
+            assertTrue(journal.append(record("ANDROID-1", "event" + i + "b")));
+            assertEquals(Arrays.asList("event" + i, "event" + i + "b"), values(journal.peek(10)));
+            journal.remove(2);
+        }
+
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.getUsedBytes());
+    }
+
+    @Test
+    public void dropNewestShouldRejectRecordsWhenFull() throws IOException {
+        journal = new SpillJournal(file(), 200, SpillJournal.DropPolicy.DROP_NEWEST);
+
+        int appended = 0;
+        while (journal.append(record("ANDROID-1", "event" + appended))) {
+            appended++;
+        }
+
+        assertEquals(1, journal.getDropped());
+        assertEquals(appended, journal.size());
+        assertEquals("event0", values(journal.peek(1)).get(0));
+    }
+
+    @Test
+    public void dropOldestShouldMakeRoomForNewRecords() throws IOException {
+        journal = new SpillJournal(file(), 200, SpillJournal.DropPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(journal.append(record("ANDROID-1", "event" + i)));
+        }
+
+        List<String> values = values(journal.peek(20));
+        assertEquals("event19", values.get(values.size() - 1));
+        assertEquals(20, journal.getDropped() + journal.size());
+        assertFalse(values.contains("event0"));
+    }
+
+    @Test
+    public void journalShouldBeRecoveredAfterReopening() throws IOException {
+        Path file = file();
+        journal = new SpillJournal(file, 4096, SpillJournal.DropPolicy.DROP_NEWEST);
+        journal.append(record("ANDROID-1", "a"));
+        journal.append(record("ANDROID-2", "b"));
+        journal.remove(1);
+        journal.close();
+
+        journal = new SpillJournal(file, 4096, SpillJournal.DropPolicy.DROP_NEWEST);
+
+        assertEquals(Arrays.asList("b"), values(journal.peek(10)));
+    }
+
+    @Test
+    public void removeShouldSkipRecordsDeliveredBehindAFailedOne() throws IOException {
+        Path file = file();
+        journal = new SpillJournal(file, 4096, SpillJournal.DropPolicy.DROP_NEWEST);
+        for (String value : Arrays.asList("a", "b", "c", "d")) {
+            journal.append(record("ANDROID-1", value));
+        }
+
+        // b and d were delivered, a was not
+        BitSet delivered = new BitSet();
+        delivered.set(1);
+        delivered.set(3);
+        journal.remove(delivered);
+        assertEquals(Arrays.asList("a", "c"), values(journal.peek(10)));
+        assertEquals(2, journal.getDrained());
+
+        // the marks survive a restart
+        journal.close();
+        journal = new SpillJournal(file, 4096, SpillJournal.DropPolicy.DROP_NEWEST);
+        assertEquals(Arrays.asList("a", "c"), values(journal.peek(10)));
+        assertEquals(Arrays.asList("a"), values(journal.peek(1)));
+
+        // once a is delivered, b, which is behind it, is removed as well
+        journal.remove(1);
+        assertEquals(Arrays.asList("c"), values(journal.peek(10)));
+        assertEquals(2, journal.size());
+
+        journal.remove(1);
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.getUsedBytes());
+    }
+
+    /**
+     * Messages published while the broker is down are spilled and reach Kafka in order once it is back, the way
+     * KafkaPlugin drains its journal. The MockProducer stands in for the broker: records fail until it "restarts".
+     */
+    @Test
+    public void spilledRecordsShouldBeDeliveredInOrderWhenBrokerRecovers() throws IOException {
+        journal = new SpillJournal(file(), 1024 * 1024, SpillJournal.DropPolicy.DROP_NEWEST);
+        MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+        KafkaMessagePublisher<String, byte[]> publisher = new KafkaMessagePublisher<>(producer, false, 100, 0, journal::append);
+
+        // the broker goes down with the first record in flight
+        publisher.publish(record("ANDROID-1", "event0"));
+        producer.errorNext(new RuntimeException("broker unavailable"));
+        for (int i = 1; i < 10; i++) {
+            assertFalse(publisher.isHealthy());
+            journal.append(record("ANDROID-1", "event" + i));
+        }
+
+        // the broker is back
+        producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+        publisher = new KafkaMessagePublisher<>(producer, false, 100, 0, journal::append);
+        List<ProducerRecord<String, byte[]>> records = journal.peek(4);
+        while (!records.isEmpty()) {
+            journal.remove(publisher.sendAndWait(records, 100));
+            records = journal.peek(4);
+        }
+
+        assertTrue(publisher.isHealthy());
+        List<String> delivered = new ArrayList<>();
+        producer.history().forEach(record -> delivered.add(new String(record.value(), StandardCharsets.UTF_8)));
+        assertEquals(Arrays.asList("event0", "event1", "event2", "event3", "event4", "event5", "event6", "event7",
+                "event8", "event9"), delivered);
+    }
+
+    private Path file() throws IOException {
+        return folder.getRoot().toPath().resolve("spill.journal");
+    }
+
+    private static ProducerRecord<String, byte[]> record(String uid, String value) {
+        return new ProducerRecord<>(TOPIC, uid, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> values(List<ProducerRecord<String, byte[]>> records) {
+        List<String> values = new ArrayList<>();
+        records.forEach(record -> values.add(new String(record.value(), StandardCharsets.UTF_8)));
+        return values;
+    }
+}
@@ -0,0 +1,33 @@
+package tak.server.plugins;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StaleTrackerTest {
+
+    private final StaleTracker tracker = new StaleTracker();
+
+    @Test
+    public void expireShouldReturnStaleUidsOnce() {
+        tracker.update("ANDROID-1", 1000);
+        tracker.update("ANDROID-2", 3000);
+
+        assertEquals(Collections.singletonList("ANDROID-1"), tracker.expire(2000));
+        assertTrue(tracker.expire(2000).isEmpty());
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void updateShouldReplaceStaleTime() {
+        tracker.update("ANDROID-1", 1000);
+        tracker.update("ANDROID-1", 5000);
+
+        assertTrue(tracker.expire(2000).isEmpty());
+        assertEquals(Arrays.asList("ANDROID-1"), tracker.expire(5000));
+    }
+}
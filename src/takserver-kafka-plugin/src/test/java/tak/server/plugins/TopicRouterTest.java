@@ -0,0 +1,74 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopicRouterTest {
+
+    private final TopicRouter router = new TopicRouter(Arrays.asList(
+            route("tak-friendly", "types", Arrays.asList("a-f-*")),
+            route("tak-tasking", "types", Arrays.asList("b-t-f", "t-x-*")),
+            route("tak-blue", "groups", Arrays.asList("Blue")),
+            route("tak-direct", "destUids", Arrays.asList("ANDROID-1")),
+            route("tak-friendly", "types", Arrays.asList("a-f-G-*"))
+    ), "tak-pub");
+
+    @Test
+    public void routeShouldMatchTypePrefix() {
+        assertEquals(Collections.singletonList("tak-friendly"), router.route(message("a-f-G-U-C")));
+    }
+
+    @Test
+    public void routeShouldMatchExactTypeOnly() {
+        assertEquals(Collections.singletonList("tak-tasking"), router.route(message("b-t-f")));
+        assertEquals(Collections.singletonList("tak-pub"), router.route(message("b-t-f-d")));
+    }
+
+    @Test
+    public void routeShouldReturnEveryMatchingTopicOnce() {
+        Message message = message("a-f-G-U-C").toBuilder().addGroups("Blue").addDestClientUids("ANDROID-1").build();
+
+        assertEquals(Arrays.asList("tak-friendly", "tak-blue", "tak-direct"), router.route(message));
+    }
+
+    @Test
+    public void routeShouldRequireEveryCriterionOfARoute() {
+        Map<String, Object> route = route("tak-blue-friendly", "types", Arrays.asList("a-f-*"));
+        route.put("groups", Arrays.asList("Blue"));
+        TopicRouter router = new TopicRouter(Collections.singletonList(route), null);
+
+        assertTrue(router.route(message("a-f-G-U-C")).isEmpty());
+        assertTrue(router.route(message("a-h-G").toBuilder().addGroups("Blue").build()).isEmpty());
+        assertEquals(Collections.singletonList("tak-blue-friendly"),
+                router.route(message("a-f-G-U-C").toBuilder().addGroups("Red").addGroups("Blue").build()));
+    }
+
+    @Test
+    public void routeShouldUseDefaultTopicWhenNothingMatches() {
+        assertEquals(Collections.singletonList("tak-pub"), router.route(message("a-h-G")));
+    }
+
+    private static Map<String, Object> route(String topic, String criterion, List<String> values) {
+        Map<String, Object> route = new HashMap<>();
+        route.put("topic", topic);
+        route.put(criterion, values);
+        return route;
+    }
+
+    private static Message message(String type) {
+        return Message.newBuilder()
+                .setPayload(TakMessage.newBuilder().setCotEvent(CotEvent.newBuilder().setType(type).setUid("uid")))
+                .build();
+    }
+}
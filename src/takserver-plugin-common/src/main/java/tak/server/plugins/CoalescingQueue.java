@@ -0,0 +1,296 @@
+package tak.server.plugins;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bounded blocking queue that keeps only the newest element per key. An element whose key is already queued replaces
+ * the queued one in place, keeping its position, so keys come out in the order they were first queued. Replacing takes
+ * constant time and always succeeds, even when the queue is full.
+ *
+ * <p>Elements matching the pass-through predicate are never replaced and never replace anything, for messages that
+ * must all be delivered, such as chat or alerts. They are queued in order with the others.
+ *
+ * @param <K> key type
+ * @param <E> element type
+ */
+public class CoalescingQueue<K, E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	private final int capacity;
+	private final Function<E, K> keyOf;
+	private final Predicate<E> passThrough;
+
+	// insertion ordered, pass-through elements are keyed by a unique token
+	private final LinkedHashMap<Object, E> elements = new LinkedHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private final LongAdder replaced = new LongAdder();
+
+	/**
+	 * @param capacity maximum number of queued keys
+	 * @param keyOf extracts the key of an element
+	 * @param passThrough selects elements that are never coalesced
+	 */
+	public CoalescingQueue(int capacity, Function<E, K> keyOf, Predicate<E> passThrough) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.keyOf = keyOf;
+		this.passThrough = passThrough;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			return enqueue(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(e)) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(e)) {
+				notFull.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// must hold the lock
+	private boolean enqueue(E e) {
+		if (!passThrough.test(e)) {
+			K key = keyOf.apply(e);
+			if (key != null && elements.containsKey(key)) {
+				// replacing keeps the key's position in the insertion order
+				elements.put(key, e);
+				replaced.increment();
+				return true;
+			}
+			if (elements.size() >= capacity) {
+				return false;
+			}
+			elements.put(key != null ? key : new Object(), e);
+		} else {
+			if (elements.size() >= capacity) {
+				return false;
+			}
+			elements.put(new Object(), e);
+		}
+		notEmpty.signal();
+		return true;
+	}
+
+	// must hold the lock
+	private E dequeue() {
+		Iterator<E> iterator = elements.values().iterator();
+		E e = iterator.next();
+		iterator.remove();
+		notFull.signal();
+		return e;
+	}
+
+	@Override
+	public E poll() {
+		lock.lock();
+		try {
+			return elements.isEmpty() ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (elements.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (elements.isEmpty()) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public E peek() {
+		lock.lock();
+		try {
+			return elements.isEmpty() ? null : elements.values().iterator().next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return elements.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - elements.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		lock.lock();
+		try {
+			int drained = 0;
+			Iterator<E> iterator = elements.values().iterator();
+			while (drained < maxElements && iterator.hasNext()) {
+				c.add(iterator.next());
+				iterator.remove();
+				drained++;
+			}
+			if (drained > 0) {
+				notFull.signalAll();
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a weakly consistent iterator over a snapshot of the queue. Removing through it removes the element from
+	 * the queue, unless it has been replaced or taken since.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		List<Map.Entry<Object, E>> snapshot;
+		lock.lock();
+		try {
+			snapshot = new ArrayList<>(elements.entrySet().size());
+			for (Map.Entry<Object, E> entry : elements.entrySet()) {
+				snapshot.add(Map.entry(entry.getKey(), entry.getValue()));
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		return new Iterator<E>() {
+			private int next = 0;
+			private Map.Entry<Object, E> last;
+
+			@Override
+			public boolean hasNext() {
+				return next < snapshot.size();
+			}
+
+			@Override
+			public E next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				last = snapshot.get(next++);
+				return last.getValue();
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				lock.lock();
+				try {
+					if (elements.remove(last.getKey(), last.getValue())) {
+						notFull.signal();
+					}
+				} finally {
+					lock.unlock();
+				}
+				last = null;
+			}
+		};
+	}
+
+	/**
+	 * @return the number of elements that replaced a queued element with the same key
+	 */
+	public long getReplaced() {
+		return replaced.sum();
+	}
+}
@@ -0,0 +1,70 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
+import atakmap.commoncommo.protobuf.v1.DetailOuterClass.Detail;
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
+
+/**
+ * Appends an xml element to the xml detail of messages, e.g. {@code <messageCount>42</messageCount>}.
+ *
+ * <p>Only the messages on the path to the detail are rebuilt, each from a shallow copy, instead of turning the whole
+ * message into nested builders, and the new detail is built by a single concatenation into a String of its final size.
+ * The detail is kept as a String rather than bytes: parsed messages already hold their xml detail as a String, so
+ * converting it to bytes would only add a copy.
+ */
+public class DetailAugmenter {
+
+	private final String open;
+	private final String close;
+
+	/**
+	 * @param tag name of the element to append
+	 */
+	public DetailAugmenter(String tag) {
+		open = "<" + tag + ">";
+		close = "</" + tag + ">";
+	}
+
+	/**
+	 * @return a copy of the message with the element appended to its xml detail
+	 */
+	public Message append(Message message, long value) {
+		return toBuilder(message, value).build();
+	}
+
+	/**
+	 * @param value the element's text, which must already be escaped for xml
+	 * @return a copy of the message with the element appended to its xml detail
+	 */
+	public Message append(Message message, String value) {
+		return toBuilder(message, value).build();
+	}
+
+	/**
+	 * Appends the element and returns a builder, for callers that change other fields of the message too, such as
+	 * provenance or destinations, so the message is built once.
+	 */
+	public Message.Builder toBuilder(Message message, long value) {
+		Detail detail = message.getPayload().getCotEvent().getDetail();
+		return withXmlDetail(message, detail.getXmlDetail() + open + value + close);
+	}
+
+	/**
+	 * Appends the element and returns a builder, for callers that change other fields of the message too, such as
+	 * provenance or destinations, so the message is built once.
+	 *
+	 * @param value the element's text, which must already be escaped for xml
+	 */
+	public Message.Builder toBuilder(Message message, String value) {
+		Detail detail = message.getPayload().getCotEvent().getDetail();
+		return withXmlDetail(message, detail.getXmlDetail() + open + value + close);
+	}
+
+	private static Message.Builder withXmlDetail(Message message, String xmlDetail) {
+		TakMessage payload = message.getPayload();
+		CotEvent event = payload.getCotEvent();
+		Detail detail = event.getDetail().toBuilder().setXmlDetail(xmlDetail).build();
+		return message.toBuilder().setPayload(payload.toBuilder().setCotEvent(event.toBuilder().setDetail(detail)));
+	}
+}
@@ -0,0 +1,146 @@
+package tak.server.plugins;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+/**
+ * Times an interceptor, which runs on TAK Server's message broadcast path, so every microsecond it takes delays the
+ * delivery of each message to clients. Latencies are recorded in a {@link LatencyHistogram} for the plugin's lifetime.
+ *
+ * <p>An optional latency budget protects the broadcast path from a slow interceptor: latencies are also recorded per
+ * window, and when a window's p99 is over the budget, the interceptor is bypassed, and messages are returned unchanged.
+ * While bypassed, one message in probeInterval still goes through the interceptor, so its latency keeps being measured,
+ * and it is used again after a window whose p99 is within the budget. A window is only closed once it has at least
+ * {@link #MIN_WINDOW_SAMPLES} latencies, as the p99 of fewer is just their maximum, and one slow message would flip
+ * the bypass.
+ *
+ * <p>The windows are recorded in two histograms in turn: the thread closing a window swaps in the other histogram,
+ * then reads and clears the closed one, so messages are never recorded into a histogram being cleared.
+ */
+public class InterceptorLatencyMonitor {
+
+	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+	public static final long DEFAULT_WINDOW_MS = 1000;
+	public static final int DEFAULT_PROBE_INTERVAL = 100;
+	public static final int MIN_WINDOW_SAMPLES = 100;
+
+	private final String name;
+	private final long budgetNanos;
+	private final long windowNanos;
+	private final int probeInterval;
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final LatencyHistogram[] windows = { new LatencyHistogram(), new LatencyHistogram() };
+	private volatile LatencyHistogram window = windows[0];
+	private final LongAdder windowSamples = new LongAdder();
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private volatile boolean bypassed;
+	private final LongAdder bypassedMessages = new LongAdder();
+
+	/**
+	 * Records latencies without a budget.
+	 *
+	 * @param name name of the interceptor in logs
+	 */
+	public InterceptorLatencyMonitor(String name) {
+		this(name, 0, DEFAULT_WINDOW_MS, DEFAULT_PROBE_INTERVAL);
+	}
+
+	/**
+	 * @param name name of the interceptor in logs
+	 * @param budgetMicros p99 latency over which the interceptor is bypassed, or 0 to never bypass it
+	 * @param windowMs length of the windows in which the p99 is measured
+	 * @param probeInterval while bypassed, one message in probeInterval still goes through the interceptor
+	 */
+	public InterceptorLatencyMonitor(String name, long budgetMicros, long windowMs, int probeInterval) {
+		if (budgetMicros < 0 || windowMs < 1 || probeInterval < 1) {
+			throw new IllegalArgumentException("latency budget must not be negative, window and probe interval must be positive");
+		}
+		this.name = name;
+		this.budgetNanos = TimeUnit.MICROSECONDS.toNanos(budgetMicros);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Runs the interceptor on the message and records how long it took, unless the interceptor is bypassed.
+	 *
+	 * @return the intercepted message, or the message unchanged if the interceptor is bypassed
+	 */
+	public Message intercept(Message message, UnaryOperator<Message> interceptor) {
+		if (bypassed && ThreadLocalRandom.current().nextInt(probeInterval) != 0) {
+			bypassedMessages.increment();
+			return message;
+		}
+
+		long start = System.nanoTime();
+		Message intercepted = interceptor.apply(message);
+		long end = System.nanoTime();
+
+		histogram.record(end - start);
+		if (budgetNanos > 0) {
+			window.record(end - start);
+			windowSamples.increment();
+			long started = windowStart.get();
+			// one thread closes the window
+			if (end - started >= windowNanos && windowSamples.sum() >= MIN_WINDOW_SAMPLES
+					&& windowStart.compareAndSet(started, end)) {
+				closeWindow();
+			}
+		}
+		return intercepted;
+	}
+
+	private void closeWindow() {
+		LatencyHistogram closed = window;
+		window = closed == windows[0] ? windows[1] : windows[0];
+		windowSamples.reset();
+		// a latency recorded by a thread that read the window before the swap may be cleared, or kept for the next turn
+		long p99 = closed.getValueAtPercentile(99);
+		closed.reset();
+		boolean overBudget = p99 > budgetNanos;
+		if (overBudget != bypassed) {
+			bypassed = overBudget;
+			if (overBudget) {
+				logger.warn("Bypassing {}, p99 latency {} ns is over its budget of {} ns", name, p99, budgetNanos);
+			} else {
+				logger.info("No longer bypassing {}, p99 latency {} ns is within its budget of {} ns", name, p99,
+						budgetNanos);
+			}
+		}
+	}
+
+	/**
+	 * @return the latencies of the interceptor since the plugin started
+	 */
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	public boolean isBypassed() {
+		return bypassed;
+	}
+
+	/**
+	 * @return messages returned unchanged because the interceptor was bypassed
+	 */
+	public long getBypassedMessages() {
+		return bypassedMessages.sum();
+	}
+
+	@Override
+	public String toString() {
+		return name + " latency - " + histogram + " bypassed messages: " + getBypassedMessages()
+				+ (bypassed ? " (bypassed)" : "");
+	}
+}
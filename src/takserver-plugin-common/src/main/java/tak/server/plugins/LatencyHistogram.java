@@ -0,0 +1,116 @@
+package tak.server.plugins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, with buckets laid out like an HDR histogram: exact below 128 ns, then 64
+ * linear buckets per power of two, so every recorded value is within 1/64 (about 1.6%) of its bucket's value, over the
+ * whole range of longs, in a fixed array.
+ *
+ * <p>Recording is lock-free and does not allocate: it finds the bucket with a few shifts and increments it. Readers may
+ * run concurrently with writers, and see every recording that completed before they started, and possibly some of the
+ * ones in progress.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	// exact buckets, then one half range per remaining power of two
+	private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+
+	static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) Math.max(nanos, 0);
+		}
+		// keeps the top SUB_BUCKET_BITS - 1 bits below the highest one
+		int shift = Long.SIZE - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (nanos >>> shift) - HALF;
+	}
+
+	// the highest value in the bucket, as HDR histograms report
+	static long valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+		long lowest = (long) ((bucket - SUB_BUCKETS) % HALF + HALF) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(nanos));
+		total.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds at or below which the percentile of recorded latencies are, or 0 if nothing was
+	 * recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+
+		// counts only grow between the two passes, so the rank is still reached, a little early if values were recorded
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return valueOf(i);
+			}
+		}
+		return valueOf(BUCKETS - 1);
+	}
+
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return valueOf(i);
+			}
+		}
+		return 0;
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : total.sum() / (double) count;
+	}
+
+	/**
+	 * Clears the histogram. Values recorded while it is being cleared may be kept or lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "count: " + getCount() + " mean: " + micros(getMean()) + " p50: " + micros(getValueAtPercentile(50))
+				+ " p90: " + micros(getValueAtPercentile(90)) + " p99: " + micros(getValueAtPercentile(99))
+				+ " p99.9: " + micros(getValueAtPercentile(99.9)) + " max: " + micros(getMax()) + " (microseconds)";
+	}
+
+	private static String micros(double nanos) {
+		return String.format("%.1f", nanos / TimeUnit.MICROSECONDS.toNanos(1));
+	}
+}
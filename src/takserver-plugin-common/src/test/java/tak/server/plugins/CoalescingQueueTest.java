@@ -0,0 +1,127 @@
+package tak.server.plugins;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingQueueTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // elements are "key:value", keys starting with "chat" pass through
+    private static CoalescingQueue<String, String> queue(int capacity) {
+        return new CoalescingQueue<>(capacity, e -> e.substring(0, e.indexOf(':')), e -> e.startsWith("chat"));
+    }
+
+    @Test
+    public void offerShouldReplaceQueuedElementInPlace() {
+        CoalescingQueue<String, String> queue = queue(10);
+
+        queue.offer("a:1");
+        queue.offer("b:1");
+        queue.offer("a:2");
+
+        assertEquals(Arrays.asList("a:2", "b:1"), drain(queue));
+        assertEquals(1, queue.getReplaced());
+    }
+
+    @Test
+    public void passThroughElementsShouldNeverBeCoalesced() {
+        CoalescingQueue<String, String> queue = queue(10);
+
+        queue.offer("chat:1");
+        queue.offer("a:1");
+        queue.offer("chat:2");
+        queue.offer("a:2");
+
+        assertEquals(Arrays.asList("chat:1", "a:2", "chat:2"), drain(queue));
+    }
+
+    @Test
+    public void offerShouldReplaceWhenFullButRejectNewKeys() {
+        CoalescingQueue<String, String> queue = queue(2);
+
+        assertTrue(queue.offer("a:1"));
+        assertTrue(queue.offer("b:1"));
+        assertTrue(queue.offer("a:2"));
+        assertFalse(queue.offer("c:1"));
+        assertFalse(queue.offer("chat:1"));
+        assertEquals(0, queue.remainingCapacity());
+
+        assertEquals("a:2", queue.poll());
+        assertTrue(queue.offer("c:1"));
+        assertEquals(Arrays.asList("b:1", "c:1"), drain(queue));
+    }
+
+    @Test
+    public void pollShouldWaitForElement() throws Exception {
+        CoalescingQueue<String, String> queue = queue(10);
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        new Thread(() -> queue.offer("a:1")).start();
+
+        assertEquals("a:1", queue.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removeIfShouldRemoveMatchingElements() {
+        CoalescingQueue<String, String> queue = queue(10);
+        queue.offer("a:1");
+        queue.offer("b:1");
+
+        assertTrue(queue.removeIf(e -> e.startsWith("a")));
+
+        assertEquals(Arrays.asList("b:1"), drain(queue));
+    }
+
+    /**
+     * A burst of position updates from a few tracks, arriving faster than they are forwarded. Reports how many
+     * messages each queue forwards and its peak depth.
+     */
+    @Test
+    public void benchmarkBurst() {
+        int tracks = 200;
+        int updates = 100000;
+
+        long[] array = burst(new ArrayBlockingQueue<>(10000), tracks, updates);
+        long[] coalescing = burst(queue(10000), tracks, updates);
+
+        logger.info("burst of {} updates from {} tracks - array queue: {} forwarded, peak depth {}; coalescing queue: {} forwarded, peak depth {}",
+                updates, tracks, array[0], array[1], coalescing[0], coalescing[1]);
+        assertTrue(coalescing[0] < array[0] / 5);
+        assertTrue(coalescing[1] <= tracks);
+    }
+
+    // the consumer forwards one message per 100 arriving, returns forwarded count and peak depth
+    private static long[] burst(BlockingQueue<String> queue, int tracks, int updates) {
+        long forwarded = 0;
+        long peak = 0;
+        for (int i = 0; i < updates; i++) {
+            queue.offer("track" + (i % tracks) + ":" + i);
+            peak = Math.max(peak, queue.size());
+            if (i % 100 == 0 && queue.poll() != null) {
+                forwarded++;
+            }
+        }
+        return new long[] {forwarded + queue.size(), peak};
+    }
+
+    private static List<String> drain(CoalescingQueue<String, String> queue) {
+        List<String> elements = new ArrayList<>();
+        queue.drainTo(elements);
+        return elements;
+    }
+}
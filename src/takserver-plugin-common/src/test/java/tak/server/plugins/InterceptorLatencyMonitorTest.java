@@ -0,0 +1,142 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tak.server.plugins.messaging.MessageConverter;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class InterceptorLatencyMonitorTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String SA = "<event version=\"2.0\" uid=\"ANDROID-352413144215585\" type=\"a-f-G-U-C\" " +
+            "how=\"m-g\" time=\"2020-02-12T13:16:07Z\" start=\"2020-02-12T13:16:05Z\" stale=\"2020-02-12T13:16:50Z\">" +
+            "<point lat=\"40.255716\" lon=\"-72.045306\" hae=\"-22.22983896651138\" ce=\"4.9\" le=\"9999999.0\"/><detail>" +
+            "</detail></event>";
+
+    private static final DetailAugmenter countDetail = new DetailAugmenter("messageCount");
+
+    private volatile long delayNanos;
+
+    // an interceptor taking delayNanos per message
+    private final UnaryOperator<Message> interceptor = message -> {
+        long end = System.nanoTime() + delayNanos;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+        return countDetail.append(message, 1);
+    };
+
+    private static Message message() throws Exception {
+        return new MessageConverter().cotStringToDataMessage(SA, new HashSet<>(), "test");
+    }
+
+    @Test
+    public void shouldRecordLatencyWithoutBudget() throws Exception {
+        InterceptorLatencyMonitor monitor = new InterceptorLatencyMonitor("test");
+        delayNanos = TimeUnit.MICROSECONDS.toNanos(200);
+
+        for (int i = 0; i < 100; i++) {
+            Message intercepted = monitor.intercept(message(), interceptor);
+            assertEquals("<messageCount>1</messageCount>", intercepted.getPayload().getCotEvent().getDetail().getXmlDetail());
+        }
+
+        assertEquals(100, monitor.getHistogram().getCount());
+        assertTrue(monitor.getHistogram().getValueAtPercentile(50) >= delayNanos);
+        assertFalse(monitor.isBypassed());
+    }
+
+    @Test
+    public void shouldBypassInterceptorOverBudgetUntilItRecovers() throws Exception {
+        InterceptorLatencyMonitor monitor = new InterceptorLatencyMonitor("test", 100, 20, 10);
+        Message message = message();
+
+        delayNanos = TimeUnit.MICROSECONDS.toNanos(500);
+        interceptUntil(monitor, message, true);
+        long bypassed = monitor.getBypassedMessages();
+        int unchanged = 0;
+        for (int i = 0; i < 100; i++) {
+            if (monitor.intercept(message, interceptor) == message) {
+                unchanged++;
+            }
+        }
+        // all but the probes
+        assertTrue(unchanged >= 70);
+
+        delayNanos = 0;
+        interceptUntil(monitor, message, false);
+        assertTrue(monitor.getBypassedMessages() > bypassed);
+        assertNotSame(message, monitor.intercept(message, interceptor));
+        logger.info("{}", monitor);
+    }
+
+    @Test
+    public void shouldNotBypassOnFewerSamplesThanMinimum() throws Exception {
+        InterceptorLatencyMonitor monitor = new InterceptorLatencyMonitor("test", 100, 1, 10);
+        Message message = message();
+        delayNanos = TimeUnit.MICROSECONDS.toNanos(500);
+
+        // each message takes longer than the window
+        for (int i = 0; i < InterceptorLatencyMonitor.MIN_WINDOW_SAMPLES - 1; i++) {
+            monitor.intercept(message, interceptor);
+        }
+        assertFalse(monitor.isBypassed());
+
+        monitor.intercept(message, interceptor);
+        assertTrue(monitor.isBypassed());
+    }
+
+    private void interceptUntil(InterceptorLatencyMonitor monitor, Message message, boolean bypassed) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (monitor.isBypassed() != bypassed) {
+            assertTrue("bypass did not change to " + bypassed, System.nanoTime() < deadline);
+            monitor.intercept(message, interceptor);
+        }
+    }
+
+    /**
+     * Measures the time per message added by the monitor to a fast interceptor, from a run of the interceptor alone and a
+     * run through the monitor.
+     */
+    @Test
+    public void benchmarkOverhead() throws Exception {
+        InterceptorLatencyMonitor monitor = new InterceptorLatencyMonitor("test", 1000, 1000, 100);
+        Message message = message();
+        UnaryOperator<Message> monitored = m -> monitor.intercept(m, interceptor);
+        delayNanos = 0;
+
+        long direct = 0;
+        long wrapped = 0;
+        // alternates, so both runs see the same compiled code and machine load
+        for (int round = 0; round < 3; round++) {
+            direct = nanosPerMessage(interceptor, message);
+            wrapped = nanosPerMessage(monitored, message);
+        }
+
+        logger.info("ns per message - interceptor: {}, through the monitor: {}; {}", direct, wrapped, monitor);
+        assertFalse(monitor.isBypassed());
+    }
+
+    private static long nanosPerMessage(UnaryOperator<Message> interceptor, Message message) {
+        int messages = 200000;
+        long size = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            size += interceptor.apply(message).getSerializedSize();
+        }
+        long nanos = System.nanoTime() - start;
+        assertTrue(size > 0);
+        return nanos / messages;
+    }
+}
@@ -0,0 +1,52 @@
+package tak.server.plugins;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsShouldCoverEveryValueWithinPrecision() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            long bucketValue = LatencyHistogram.valueOf(LatencyHistogram.bucketOf(value));
+
+            assertTrue(bucketValue >= value);
+            assertTrue(bucketValue - value <= value / 64);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.valueOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+        assertEquals(127, LatencyHistogram.valueOf(LatencyHistogram.bucketOf(127)));
+    }
+
+    @Test
+    public void bucketsShouldBeInValueOrder() {
+        for (long value = 1; value < 1000000; value++) {
+            assertTrue(LatencyHistogram.bucketOf(value) >= LatencyHistogram.bucketOf(value - 1));
+        }
+    }
+
+    @Test
+    public void percentilesShouldMatchRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 64);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 64);
+        assertEquals(1000000, histogram.getMax(), 1000000 / 64);
+        assertEquals(500500, histogram.getMean(), 0.001);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
@@ -1,6 +1,5 @@
 package tak.server.plugins;
 
-import atakmap.commoncommo.protobuf.v1.DetailOuterClass;
 import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
 import org.dom4j.DocumentException;
 import org.slf4j.Logger;
@@ -38,6 +37,8 @@ public class DataFeedMessageSenderPlugin extends MessageSenderBase {
 
 	private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
 
+	private static final DetailAugmenter messageCountDetail = new DetailAugmenter("messageCount");
+
 	private static final String SA = "<event version=\"2.0\" uid=\"ANDROID-352413144215586\" type=\"a-f-G-U-C\" how=\"m-g\" time=\"2020-02-12T13:16:07Z\" start=\"2020-02-12T13:16:05Z\" stale=\"2020-02-12T13:16:50Z\"><point lat=\"40.255716\" lon=\"-72.045306\" hae=\"-22.22983896651138\" ce=\"4.9\" le=\"9999999.0\"/><detail><__group name=\"Dark Blue\" role=\"Team Member\"/><precisionlocation geopointsrc=\"GPS\" altsrc=\"GPS\"/><status battery=\"32\"/><takv device=\"SAMSUNG SM-G975U1\" platform=\"ATAK-CIV\" os=\"29\" version=\"3.12.0-45691.45691-CIV\"/><track speed=\"0.0\" course=\"344.72362164876733\"/><contact endpoint=\"*:-1:stcp\" phone=\"19999999999\" callsign=\"coolata\"/><uid Droid=\"coolata\"/></detail></event>";
 
 	private ScheduledFuture<?> future;
@@ -164,13 +165,7 @@ public class DataFeedMessageSenderPlugin extends MessageSenderBase {
 	 */
 	protected Message injectXmlDetail(Message message, AtomicInteger count)
 	{
-		Message.Builder messageBuilder = message.toBuilder();
-        DetailOuterClass.Detail.Builder detailBuilder = messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder();
-
-		String xmlDetail = detailBuilder.getXmlDetail();
-		xmlDetail += "<messageCount>" + count.incrementAndGet() + "</messageCount>";
-		detailBuilder.setXmlDetail(xmlDetail);
-		return messageBuilder.build();
+		return messageCountDetail.append(message, count.incrementAndGet());
 	}
 
 	/**
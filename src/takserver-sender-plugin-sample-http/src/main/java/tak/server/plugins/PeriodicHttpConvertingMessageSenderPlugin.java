@@ -40,6 +40,8 @@ public class PeriodicHttpConvertingMessageSenderPlugin extends MessageSenderBase
 
 	private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
 
+	private static final DetailAugmenter messageCountDetail = new DetailAugmenter("messageCount");
+
 	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
 	private static final long DEFAULT_INTERVAL = 2000;
@@ -151,12 +153,7 @@ public class PeriodicHttpConvertingMessageSenderPlugin extends MessageSenderBase
 	 */
 	protected Message injectXmlDetail(Message message, AtomicInteger count)
 	{
-		Message.Builder messageBuilder = message.toBuilder();
-		String xmlDetail = messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().getXmlDetail();
-		xmlDetail += "<messageCount>" + count.incrementAndGet() + "</messageCount>";
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().clearXmlDetail();
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().setXmlDetail(xmlDetail);
-		return messageBuilder.build();
+		return messageCountDetail.append(message, count.incrementAndGet());
 	}
 
 	/**
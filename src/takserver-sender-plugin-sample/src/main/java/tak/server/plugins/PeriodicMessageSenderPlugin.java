@@ -34,6 +34,8 @@ public class PeriodicMessageSenderPlugin extends MessageSenderBase {
 
 	private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
 
+	private static final DetailAugmenter messageCountDetail = new DetailAugmenter("messageCount");
+
 	private int messageCount = 0;
 
 	private static final String SA = "<event version=\"2.0\" uid=\"ANDROID-352413144215585\" type=\"a-f-G-U-C\" how=\"m-g\" time=\"2020-02-12T13:16:07Z\" start=\"2020-02-12T13:16:05Z\" stale=\"2020-02-12T13:16:50Z\"><point lat=\"40.255716\" lon=\"-72.045306\" hae=\"-22.22983896651138\" ce=\"4.9\" le=\"9999999.0\"/><detail><__group name=\"Dark Blue\" role=\"Team Member\"/><precisionlocation geopointsrc=\"GPS\" altsrc=\"GPS\"/><status battery=\"32\"/><takv device=\"SAMSUNG SM-G975U1\" platform=\"ATAK-CIV\" os=\"29\" version=\"3.12.0-45691.45691-CIV\"/><track speed=\"0.0\" course=\"344.72362164876733\"/><contact endpoint=\"*:-1:stcp\" phone=\"19999999999\" callsign=\"coolata\"/><uid Droid=\"coolata\"/></detail></event>";
@@ -98,13 +100,7 @@ public class PeriodicMessageSenderPlugin extends MessageSenderBase {
 
 		messageCount += 1;
 
-		Message.Builder messageBuilder = message.toBuilder();
-
-		String xmlDetail = messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().getXmlDetail();
-		xmlDetail += "<messageCount>" + messageCount + "</messageCount>";
-
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().clearXmlDetail();
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().setXmlDetail(xmlDetail);
+		Message.Builder messageBuilder = messageCountDetail.toBuilder(message, messageCount);
 
 		if (callsigns != null && !callsigns.isEmpty()) {
 
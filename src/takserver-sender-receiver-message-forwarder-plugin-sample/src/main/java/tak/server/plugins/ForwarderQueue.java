@@ -0,0 +1,146 @@
+package tak.server.plugins;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+/**
+ * Queue of messages waiting to be forwarded, applying an {@link OverflowPolicy} when it is full and counting the
+ * messages each policy discards or replaces.
+ */
+public class ForwarderQueue {
+
+	private final BlockingQueue<Message> queue;
+	private final OverflowPolicy overflowPolicy;
+	private final long blockTimeoutMs;
+
+	private final LongAdder droppedNewest = new LongAdder();
+	private final LongAdder droppedOldest = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * @param queue the bounded queue holding the messages
+	 * @param overflowPolicy what to do when the queue is full
+	 * @param blockTimeoutMs how long {@link OverflowPolicy#BLOCK} waits for room
+	 */
+	public ForwarderQueue(BlockingQueue<Message> queue, OverflowPolicy overflowPolicy, long blockTimeoutMs) {
+		if (overflowPolicy == OverflowPolicy.COALESCE && queue instanceof MpmcRingBuffer) {
+			// coalescing removes queued messages by UID to make room, but a message removed from the ring buffer keeps its
+			// slot until the drain thread passes it
+			throw new IllegalArgumentException("the coalesce overflow policy is not supported by the "
+					+ queue.getClass().getSimpleName() + " queue");
+		}
+		this.queue = queue;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutMs = blockTimeoutMs;
+	}
+
+	/**
+	 * Adds a message, applying the overflow policy if the queue is full.
+	 *
+	 * @return false if the message was discarded
+	 */
+	public boolean offer(Message message) {
+		if (queue.offer(message)) {
+			return true;
+		}
+
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			return offerDroppingOldest(message);
+		case BLOCK:
+			try {
+				if (queue.offer(message, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			timedOut.increment();
+			return false;
+		case COALESCE:
+			String uid = coalescingKey(message);
+			// only scans the queue when it is full
+			if (uid != null && queue.removeIf(queued -> uid.equals(coalescingKey(queued)))) {
+				coalesced.increment();
+			}
+			return offerDroppingOldest(message);
+		default:
+			droppedNewest.increment();
+			return false;
+		}
+	}
+
+	private boolean offerDroppingOldest(Message message) {
+		while (!queue.offer(message)) {
+			if (queue instanceof GroupFairQueue) {
+				// drops from the group over its quota, or the largest group, rather than the group whose turn it is
+				if (!((GroupFairQueue) queue).dropFor(message)) {
+					droppedNewest.increment();
+					return false;
+				}
+				droppedOldest.increment();
+			} else if (queue.poll() != null) {
+				droppedOldest.increment();
+			}
+		}
+		return true;
+	}
+
+	public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.poll(timeout, unit);
+	}
+
+	public int drainTo(Collection<? super Message> messages, int maxMessages) {
+		return queue.drainTo(messages, maxMessages);
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public long getDroppedNewest() {
+		return droppedNewest.sum();
+	}
+
+	public long getDroppedOldest() {
+		return droppedOldest.sum();
+	}
+
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+
+	/**
+	 * @return messages replaced by a newer message with the same CoT UID, by the coalesce policy or by a
+	 * {@link CoalescingQueue}
+	 */
+	public long getCoalesced() {
+		long replaced = queue instanceof CoalescingQueue ? ((CoalescingQueue<?, ?>) queue).getReplaced() : 0;
+		return coalesced.sum() + replaced;
+	}
+
+	@Override
+	public String toString() {
+		return "queued: " + size() + " dropped newest: " + getDroppedNewest() + " dropped oldest: " + getDroppedOldest()
+				+ " timed out: " + getTimedOut() + " coalesced: " + getCoalesced()
+				+ (queue instanceof GroupFairQueue ? " " + queue : "");
+	}
+
+	/**
+	 * @return the CoT UID of the message, or null if it has none, since messages without a UID are not updates of one
+	 * track and must not replace each other
+	 */
+	static String coalescingKey(Message message) {
+		String uid = message.getPayload().getCotEvent().getUid();
+		return uid.isEmpty() ? null : uid;
+	}
+}
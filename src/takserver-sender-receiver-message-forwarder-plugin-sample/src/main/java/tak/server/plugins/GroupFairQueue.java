@@ -0,0 +1,563 @@
+package tak.server.plugins;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+/**
+ * Bounded blocking queue with one sub-queue per group set, drained by deficit round robin, so a group sending far more
+ * than the others, such as a drone feed, cannot starve them. Each turn, a group may forward messages up to its quantum
+ * of bytes plus whatever it left unused on its previous turns while it had messages queued.
+ *
+ * <p>Each group set also has limits on the messages and bytes it may have queued, from its {@link Quota}, so one group
+ * cannot fill the whole queue. Quotas are looked up by group set: the group name, or the sorted group names joined
+ * with commas for messages in several groups. The group set of a message in several groups is also kept by its list of
+ * groups, so the names are only sorted and joined the first time a list is seen, and classifying any message costs a
+ * single hash lookup. Group sets with nothing queued for the group idle time are evicted, along with their counts, so
+ * group sets that come and go do not accumulate.
+ *
+ * <p>Iterators return a snapshot of the queued messages, group by group in round robin order, and removing a message
+ * through them removes it from the queue if it is still queued.
+ */
+public class GroupFairQueue extends AbstractQueue<Message> implements BlockingQueue<Message> {
+
+	/**
+	 * Share and limits of a group set.
+	 */
+	public static class Quota {
+
+		private final int quantumBytes;
+		private final int maxMessages;
+		private final long maxBytes;
+
+		/**
+		 * @param quantumBytes bytes the group may forward per round
+		 * @param maxMessages messages the group may have queued
+		 * @param maxBytes bytes the group may have queued
+		 */
+		public Quota(int quantumBytes, int maxMessages, long maxBytes) {
+			if (quantumBytes < 1 || maxMessages < 1 || maxBytes < 1) {
+				throw new IllegalArgumentException("group quotas must be positive");
+			}
+			this.quantumBytes = quantumBytes;
+			this.maxMessages = maxMessages;
+			this.maxBytes = maxBytes;
+		}
+	}
+
+	public static final long DEFAULT_GROUP_IDLE_MS = 60000;
+
+	private static final class Group {
+
+		private final String name;
+		private final Quota quota;
+		private final ArrayDeque<Message> messages = new ArrayDeque<>();
+		private long bytes;
+		private long deficit;
+		private boolean active;
+		private long idleSince = System.nanoTime();
+
+		private long forwarded;
+		private long rejected;
+
+		private Group(String name, Quota quota) {
+			this.name = name;
+			this.quota = quota;
+		}
+
+		// the group must have been taken out of the active groups
+		private void idle() {
+			active = false;
+			// an idle group does not save up deficit
+			deficit = 0;
+			idleSince = System.nanoTime();
+		}
+
+		private boolean overQuota(int size) {
+			return messages.size() >= quota.maxMessages || bytes + size > quota.maxBytes;
+		}
+	}
+
+	private final int capacity;
+	private final Quota defaultQuota;
+	private final Map<String, Quota> quotas;
+	private final long groupIdleNanos;
+
+	// group sets by name, in the order they were seen, and by the groups of messages in several groups, as listed
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+	private final Map<List<String>, Group> groupLists = new HashMap<>();
+	private long lastEviction = System.nanoTime();
+	// groups with queued messages, in round robin order
+	private final ArrayDeque<Group> active = new ArrayDeque<>();
+	private int count;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * @param capacity maximum number of messages, across all groups
+	 * @param defaultQuota quota of group sets without their own
+	 * @param quotas quotas by group set
+	 */
+	public GroupFairQueue(int capacity, Quota defaultQuota, Map<String, Quota> quotas) {
+		this(capacity, defaultQuota, quotas, DEFAULT_GROUP_IDLE_MS);
+	}
+
+	/**
+	 * @param capacity maximum number of messages, across all groups
+	 * @param defaultQuota quota of group sets without their own
+	 * @param quotas quotas by group set
+	 * @param groupIdleMs time after which a group set with nothing queued is evicted
+	 */
+	public GroupFairQueue(int capacity, Quota defaultQuota, Map<String, Quota> quotas, long groupIdleMs) {
+		if (capacity < 1 || groupIdleMs < 1) {
+			throw new IllegalArgumentException("capacity and group idle time must be positive");
+		}
+		this.capacity = capacity;
+		this.defaultQuota = defaultQuota;
+		this.quotas = quotas;
+		this.groupIdleNanos = TimeUnit.MILLISECONDS.toNanos(groupIdleMs);
+	}
+
+	/**
+	 * @return the group set of a message, as named in the quotas
+	 */
+	static String groupSet(Message message) {
+		switch (message.getGroupsCount()) {
+		case 0:
+			return "";
+		case 1:
+			return message.getGroups(0);
+		default:
+			String[] names = message.getGroupsList().toArray(new String[0]);
+			Arrays.sort(names);
+			return String.join(",", names);
+		}
+	}
+
+	// must hold the lock
+	private Group groupOf(Message message) {
+		if (message.getGroupsCount() < 2) {
+			return group(groupSet(message));
+		}
+		List<String> names = message.getGroupsList();
+		Group group = groupLists.get(names);
+		if (group == null) {
+			group = group(groupSet(message));
+			groupLists.put(List.copyOf(names), group);
+		}
+		return group;
+	}
+
+	// must hold the lock
+	private Group group(String name) {
+		Group group = groups.get(name);
+		if (group == null) {
+			evictIdleGroups();
+			group = new Group(name, quotas.getOrDefault(name, defaultQuota));
+			groups.put(name, group);
+		}
+		return group;
+	}
+
+	// must hold the lock, runs when a group set is added, at most once per group idle time
+	private void evictIdleGroups() {
+		long now = System.nanoTime();
+		if (now - lastEviction < groupIdleNanos) {
+			return;
+		}
+		lastEviction = now;
+		Predicate<Group> idle = group -> !group.active && now - group.idleSince >= groupIdleNanos;
+		groups.values().removeIf(idle);
+		groupLists.values().removeIf(idle);
+	}
+
+	@Override
+	public boolean offer(Message message) {
+		if (message == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			return enqueue(message);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException {
+		if (message == null) {
+			throw new NullPointerException();
+		}
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(message)) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Message message) throws InterruptedException {
+		if (message == null) {
+			throw new NullPointerException();
+		}
+		lock.lockInterruptibly();
+		try {
+			while (!enqueue(message)) {
+				notFull.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// must hold the lock
+	private boolean enqueue(Message message) {
+		Group group = groupOf(message);
+		int size = message.getSerializedSize();
+		if (count >= capacity || group.overQuota(size)) {
+			group.rejected++;
+			return false;
+		}
+		group.messages.addLast(message);
+		group.bytes += size;
+		count++;
+		if (!group.active) {
+			group.active = true;
+			group.deficit = group.quota.quantumBytes;
+			active.addLast(group);
+		}
+		notEmpty.signal();
+		return true;
+	}
+
+	// must hold the lock, and the queue must not be empty
+	private Message dequeue() {
+		while (true) {
+			Group group = active.peekFirst();
+			Message message = group.messages.peekFirst();
+			int size = message.getSerializedSize();
+			if (group.deficit < size) {
+				// the group's turn is over, it keeps its deficit for the next round
+				active.pollFirst();
+				active.addLast(group);
+				group.deficit += group.quota.quantumBytes;
+				continue;
+			}
+
+			group.messages.pollFirst();
+			group.deficit -= size;
+			group.bytes -= size;
+			group.forwarded++;
+			count--;
+			if (group.messages.isEmpty()) {
+				active.pollFirst();
+				group.idle();
+			}
+			return message;
+		}
+	}
+
+	/**
+	 * Makes room for a message that did not fit, by dropping the oldest message of its own group set if that group is
+	 * over its quota, otherwise the oldest message of the group set with the most queued bytes.
+	 *
+	 * @return false if nothing could be dropped, or the message is larger than its group's byte quota
+	 */
+	public boolean dropFor(Message message) {
+		lock.lock();
+		try {
+			Group group = groupOf(message);
+			int size = message.getSerializedSize();
+			if (size > group.quota.maxBytes) {
+				// would not fit even in an empty group
+				return false;
+			}
+			if (!group.overQuota(size)) {
+				group = null;
+				for (Group candidate : active) {
+					if (group == null || candidate.bytes > group.bytes) {
+						group = candidate;
+					}
+				}
+			}
+			if (group == null || group.messages.isEmpty()) {
+				return false;
+			}
+
+			group.bytes -= group.messages.pollFirst().getSerializedSize();
+			count--;
+			if (group.messages.isEmpty()) {
+				active.remove(group);
+				group.idle();
+			}
+			notFull.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Message poll() {
+		lock.lock();
+		try {
+			if (count == 0) {
+				return null;
+			}
+			Message message = dequeue();
+			notFull.signal();
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Message message = dequeue();
+			notFull.signal();
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Message take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			Message message = dequeue();
+			notFull.signal();
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the oldest message of the group whose turn it is, which poll may pass over if the group has used up its
+	 * turn
+	 */
+	@Override
+	public Message peek() {
+		lock.lock();
+		try {
+			return count == 0 ? null : active.peekFirst().messages.peekFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Message> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Message> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		lock.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && count > 0) {
+				c.add(dequeue());
+				drained++;
+			}
+			if (drained > 0) {
+				notFull.signalAll();
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super Message> filter) {
+		lock.lock();
+		try {
+			boolean removed = false;
+			for (Iterator<Group> groupIterator = active.iterator(); groupIterator.hasNext();) {
+				Group group = groupIterator.next();
+				for (Iterator<Message> messages = group.messages.iterator(); messages.hasNext();) {
+					Message message = messages.next();
+					if (filter.test(message)) {
+						messages.remove();
+						group.bytes -= message.getSerializedSize();
+						count--;
+						removed = true;
+					}
+				}
+				if (group.messages.isEmpty()) {
+					groupIterator.remove();
+					group.idle();
+				}
+			}
+			if (removed) {
+				notFull.signalAll();
+			}
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return an iterator over a snapshot of the queued messages, group by group in round robin order
+	 */
+	@Override
+	public Iterator<Message> iterator() {
+		List<Message> snapshot;
+		lock.lock();
+		try {
+			snapshot = new ArrayList<>(count);
+			for (Group group : active) {
+				snapshot.addAll(group.messages);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		return new Iterator<Message>() {
+
+			private final Iterator<Message> messages = snapshot.iterator();
+			private Message last;
+
+			@Override
+			public boolean hasNext() {
+				return messages.hasNext();
+			}
+
+			@Override
+			public Message next() {
+				last = messages.next();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				Message message = last;
+				last = null;
+				// this message rather than any equal one, unless it was polled since
+				removeIf(queued -> queued == message);
+			}
+		};
+	}
+
+	/**
+	 * @return the number of group sets seen and not evicted
+	 */
+	public int getGroupCount() {
+		lock.lock();
+		try {
+			return groups.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return messages forwarded from a group set since it was last evicted
+	 */
+	public long getForwarded(String groupSet) {
+		lock.lock();
+		try {
+			Group group = groups.get(groupSet);
+			return group == null ? 0 : group.forwarded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return offers of messages of a group set rejected because the queue or the group was full, since it was last
+	 * evicted
+	 */
+	public long getRejected(String groupSet) {
+		lock.lock();
+		try {
+			Group group = groups.get(groupSet);
+			return group == null ? 0 : group.rejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			StringBuilder builder = new StringBuilder("groups:");
+			for (Group group : groups.values()) {
+				builder.append(' ').append(group.name.isEmpty() ? "(none)" : group.name).append(" [queued: ")
+						.append(group.messages.size()).append(" forwarded: ").append(group.forwarded)
+						.append(" rejected: ").append(group.rejected).append(']');
+			}
+			return builder.toString();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package tak.server.plugins;
+
+import java.util.Set;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+/**
+ * Decides which received messages the forwarder queues. Messages the forwarder sent itself are rejected to prevent
+ * looping, and, if input groups are configured, so are messages in none of them.
+ *
+ * <p>The checks read the message's repeated fields by index, so rejecting a message allocates nothing.
+ */
+public class MessageFilter {
+
+	private final String provenance;
+	private final Set<String> inputGroups;
+
+	/**
+	 * @param provenance the provenance the forwarder adds to the messages it sends
+	 * @param inputGroups the groups messages must be in, or null to accept messages from any group
+	 */
+	public MessageFilter(String provenance, Set<String> inputGroups) {
+		this.provenance = provenance;
+		this.inputGroups = inputGroups;
+	}
+
+	public boolean accepts(Message message) {
+		for (int i = 0; i < message.getProvenanceCount(); i++) {
+			if (provenance.equals(message.getProvenance(i))) {
+				return false;
+			}
+		}
+
+		if (inputGroups == null) {
+			return true;
+		}
+		for (int i = 0; i < message.getGroupsCount(); i++) {
+			if (inputGroups.contains(message.getGroups(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,14 +1,20 @@
 package tak.server.plugins;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,17 +27,34 @@ import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
 @TakServerPlugin(name="Message Forwarder Plugin", description="This plugin will forward messages it receives")
 public class MessageForwarderPlugin extends MessageSenderReceiverBase {
 
-	// This plugin does scheduled work below, using this worker pool
-	private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
-	private ScheduledFuture<?> future;
-
 	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+	private static final long STOP_TIMEOUT_MS = 5000;
+
+	private static final DetailAugmenter messageCountDetail = new DetailAugmenter("messageCount");
+
+	private static final ScheduledExecutorService statsWorker = Executors.newScheduledThreadPool(1);
+
+	// This plugin forwards messages on dedicated threads, one per worker, each draining its own queue in batches
+	private Thread[] drainThreads;
+	private volatile boolean running = false;
+
 	private Set<String> inputGroups = null;
 	private Set<String> outputGroups = null;
+	private final MessageFilter messageFilter;
+
+	// messages are sharded across the workers by CoT UID, so the messages of each UID are forwarded in order. Each
+	// worker splits its messages into priority lanes by CoT type.
+	private final PriorityLanes[] messageQueues;
+	private final AtomicLong messageCount = new AtomicLong();
 
-	private final ArrayBlockingQueue<Message> messageQueue;
-	private int messageCount = 0;
+	// maximum number of messages taken from the queue per wake-up
+	private int maxBatchSize = 100;
+	// how long the drain thread waits for a message before checking whether the plugin was stopped
+	private long idleWaitMs = 100;
+	// how often the metrics of each lane are logged (s), 0 to disable
+	private long statsInterval = 60;
+	private ScheduledFuture<?> statsFuture;
 
 	@SuppressWarnings("unchecked")
 	public MessageForwarderPlugin() {
@@ -40,6 +63,8 @@ public class MessageForwarderPlugin extends MessageSenderReceiverBase {
 			inputGroups = new HashSet<>((List<String>) config.getProperty("inputGroups"));
 		}
 
+		messageFilter = new MessageFilter(MessageForwarderPlugin.class.getName(), inputGroups);
+
 		if (config.containsProperty("outputGroups")) {
 		    outputGroups = new HashSet<>((List<String>) config.getProperty("outputGroups"));
 		}
@@ -49,11 +74,174 @@ public class MessageForwarderPlugin extends MessageSenderReceiverBase {
 		    queueSize = (int) config.getProperty("queueSize");
 		}
 
-		messageQueue = new ArrayBlockingQueue<>(queueSize);
+		OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+		if (config.containsProperty("overflowPolicy")) {
+			overflowPolicy = OverflowPolicy.fromConfig((String) config.getProperty("overflowPolicy"));
+		}
+
+		long blockTimeoutMs = 100;
+		if (config.containsProperty("blockTimeoutMs")) {
+			blockTimeoutMs = (int) config.getProperty("blockTimeoutMs");
+		}
+
+		String queueType = "array";
+		if (config.containsProperty("queueType")) {
+			queueType = (String) config.getProperty("queueType");
+		}
+
+		// chat and alerts are never coalesced
+		List<String> passThroughTypes = Arrays.asList("b-t-f", "b-a-");
+		if (config.containsProperty("passThroughTypes")) {
+			passThroughTypes = (List<String>) config.getProperty("passThroughTypes");
+		}
+
+		MpmcRingBuffer.WaitStrategy waitStrategy = MpmcRingBuffer.WaitStrategy.PARK;
+		if (config.containsProperty("waitStrategy")) {
+			waitStrategy = MpmcRingBuffer.WaitStrategy.fromConfig((String) config.getProperty("waitStrategy"));
+		}
+
+		// deficit round robin share and queued limits of each group set, for the groupFair queue type
+		int groupQuantumBytes = 1500;
+		if (config.containsProperty("groupQuantumBytes")) {
+			groupQuantumBytes = (int) config.getProperty("groupQuantumBytes");
+		}
+
+		int groupMaxMessages = queueSize;
+		if (config.containsProperty("groupMaxMessages")) {
+			groupMaxMessages = (int) config.getProperty("groupMaxMessages");
+		}
+
+		long groupMaxBytes = Long.MAX_VALUE;
+		if (config.containsProperty("groupMaxBytes")) {
+			groupMaxBytes = ((Number) config.getProperty("groupMaxBytes")).longValue();
+		}
+
+		// group sets with nothing queued for this long are forgotten, with their counts
+		long groupIdleMs = GroupFairQueue.DEFAULT_GROUP_IDLE_MS;
+		if (config.containsProperty("groupIdleMs")) {
+			groupIdleMs = ((Number) config.getProperty("groupIdleMs")).longValue();
+		}
+
+		GroupFairQueue.Quota defaultQuota = new GroupFairQueue.Quota(groupQuantumBytes, groupMaxMessages, groupMaxBytes);
+		Map<String, GroupFairQueue.Quota> groupQuotas = new HashMap<>();
+		if (config.containsProperty("groupQuotas")) {
+			for (Map<String, Object> quota : (List<Map<String, Object>>) config.getProperty("groupQuotas")) {
+				String group = (String) quota.get("group");
+				if (group == null) {
+					throw new IllegalArgumentException("group quotas need a group: " + quota);
+				}
+				groupQuotas.put(group, new GroupFairQueue.Quota(
+						quota.containsKey("quantumBytes") ? (int) quota.get("quantumBytes") : groupQuantumBytes,
+						quota.containsKey("maxMessages") ? (int) quota.get("maxMessages") : groupMaxMessages,
+						quota.containsKey("maxBytes") ? ((Number) quota.get("maxBytes")).longValue() : groupMaxBytes));
+			}
+		}
+
+		int workers = 1;
+		if (config.containsProperty("workers")) {
+			workers = (int) config.getProperty("workers");
+		}
+		if (workers < 1) {
+			throw new IllegalArgumentException("workers must be positive: " + workers);
+		}
+
+		// lanes before the default lane, which takes the messages matching no other lane
+		List<Map<String, Object>> lanes = new ArrayList<>();
+		if (config.containsProperty("lanes")) {
+			lanes = (List<Map<String, Object>>) config.getProperty("lanes");
+		}
+
+		PriorityLanes.Scheduling laneScheduling = PriorityLanes.Scheduling.STRICT;
+		if (config.containsProperty("laneScheduling")) {
+			laneScheduling = PriorityLanes.Scheduling.fromConfig((String) config.getProperty("laneScheduling"));
+		}
+
+		int defaultLaneWeight = 1;
+		if (config.containsProperty("defaultLaneWeight")) {
+			defaultLaneWeight = (int) config.getProperty("defaultLaneWeight");
+		}
+
+		// queueSize applies to the default lane of each worker
+		messageQueues = new PriorityLanes[workers];
+		for (int i = 0; i < workers; i++) {
+			List<PriorityLanes.Lane> workerLanes = new ArrayList<>();
+			for (Map<String, Object> lane : lanes) {
+				String name = (String) lane.get("name");
+				List<String> types = (List<String>) lane.get("types");
+				if (name == null || types == null) {
+					throw new IllegalArgumentException("lanes need a name and types: " + lane);
+				}
+				int weight = lane.containsKey("weight") ? (int) lane.get("weight") : 1;
+				int laneQueueSize = lane.containsKey("queueSize") ? (int) lane.get("queueSize") : queueSize;
+				workerLanes.add(new PriorityLanes.Lane(name, types, weight, new ForwarderQueue(
+						createQueue(queueType, laneQueueSize, passThroughTypes, waitStrategy, defaultQuota, groupQuotas,
+								groupIdleMs),
+						overflowPolicy, blockTimeoutMs)));
+			}
+			workerLanes.add(new PriorityLanes.Lane("default", List.of(), defaultLaneWeight, new ForwarderQueue(
+					createQueue(queueType, queueSize, passThroughTypes, waitStrategy, defaultQuota, groupQuotas,
+							groupIdleMs),
+					overflowPolicy, blockTimeoutMs)));
+			messageQueues[i] = new PriorityLanes(workerLanes, laneScheduling);
+		}
+
+		if (config.containsProperty("maxBatchSize")) {
+			maxBatchSize = (int) config.getProperty("maxBatchSize");
+		}
+
+		if (config.containsProperty("idleWaitMs")) {
+			idleWaitMs = (int) config.getProperty("idleWaitMs");
+		}
+
+		if (config.containsProperty("statsInterval")) {
+			statsInterval = (int) config.getProperty("statsInterval");
+		}
 
 		logger.info("Properties: {}", config.getProperties());
 	}
 
+	static BlockingQueue<Message> createQueue(String queueType, int queueSize, List<String> passThroughTypes,
+			MpmcRingBuffer.WaitStrategy waitStrategy, GroupFairQueue.Quota defaultQuota,
+			Map<String, GroupFairQueue.Quota> groupQuotas, long groupIdleMs) {
+		switch (queueType.toLowerCase()) {
+		case "array":
+			return new ArrayBlockingQueue<>(queueSize);
+		case "coalescing":
+			// only the newest message of each CoT UID is forwarded
+			return new CoalescingQueue<String, Message>(queueSize, ForwarderQueue::coalescingKey,
+					message -> {
+						String type = message.getPayload().getCotEvent().getType();
+						for (String passThroughType : passThroughTypes) {
+							if (type.startsWith(passThroughType)) {
+								return true;
+							}
+						}
+						return false;
+					});
+		case "ringbuffer":
+			// lock-free handoff from the threads calling onMessage to the drain thread, holding queueSize rounded up to a
+			// power of two, e.g. 1024 messages for 1000
+			return new MpmcRingBuffer<>(queueSize, waitStrategy);
+		case "groupfair":
+			// each group set gets its share of the forwarding, so a busy group cannot starve the others
+			return new GroupFairQueue(queueSize, defaultQuota, groupQuotas, groupIdleMs);
+		default:
+			throw new IllegalArgumentException("unknown queue type: " + queueType);
+		}
+	}
+
+	/**
+	 * Picks the worker that forwards a message. All messages with the same CoT UID go to the same worker.
+	 */
+	static int shardOf(Message message, int workers) {
+		if (workers == 1) {
+			return 0;
+		}
+		int hash = message.getPayload().getCotEvent().getUid().hashCode();
+		// spreads the high bits, as HashMap does, since UIDs often differ only in their last characters
+		return Math.floorMod(hash ^ (hash >>> 16), workers);
+	}
+
 	/**
 	 * Starts the plugin. Retrieve messages from a local queue and processes them, and sends them back out. If there are no
 	 * messages being received,the plugin will wait until there are or until it is stopped.
@@ -61,48 +249,82 @@ public class MessageForwarderPlugin extends MessageSenderReceiverBase {
 	@Override
 	public void start() {
 
-		logger.info("Starting {}", getClass().getName());
+		logger.info("Starting {} with {} workers", getClass().getName(), messageQueues.length);
 
-        try {
-            future = worker.scheduleWithFixedDelay(() -> {
-                try {
-                    logger.info("Plugin scheduler has received {} messages so far and is waiting for new messages... ", messageCount);
-                    Message incomingMessage = messageQueue.take(); // blocks on waiting for a message
+		running = true;
+		drainThreads = new Thread[messageQueues.length];
+		for (int i = 0; i < messageQueues.length; i++) {
+			PriorityLanes messageQueue = messageQueues[i];
+			String name = messageQueues.length == 1 ? "message-forwarder" : "message-forwarder-" + i;
+			drainThreads[i] = new Thread(() -> drain(messageQueue), name);
+			drainThreads[i].setDaemon(true);
+			drainThreads[i].start();
+		}
 
-                    logger.info("Got message #{} from queue", messageCount);
-                    Message message = generateMessage(incomingMessage);
-                    send(message);
-					logger.info("Message sent from plugin to TAK server: {}", message);
+		if (statsInterval > 0) {
+			statsFuture = statsWorker.scheduleWithFixedDelay(this::logQueues, statsInterval, statsInterval,
+					TimeUnit.SECONDS);
+		}
+	}
 
-                } catch (InterruptedException e) {
-                    logger.error("Plugin has been interrupted while waiting for a message ", e);
-                }
-            }, 0, 10, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            logger.error("error initializing periodic data sender ", e);
-        }
+	/**
+	 * Forwards the messages of one worker until the plugin is stopped. Each wake-up takes every queued message, up to
+	 * maxBatchSize, in the order the lane scheduling gives, and sends them back to back. While the queue is empty, the
+	 * thread blocks on it, for at most idleWaitMs at a time.
+	 */
+	private void drain(PriorityLanes messageQueue) {
+		List<Message> batch = new ArrayList<>(maxBatchSize);
+		while (running) {
+			try {
+				Message first = messageQueue.poll(idleWaitMs, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				messageQueue.drainTo(batch, maxBatchSize - 1);
 
+				for (Message incomingMessage : batch) {
+					try {
+						Message message = generateMessage(incomingMessage);
+						send(message);
+						if (logger.isTraceEnabled()) {
+							logger.trace("Message sent from plugin to TAK server: {}", message);
+						}
+					} catch (Exception e) {
+						logger.error("error forwarding message ", e);
+					}
+				}
+				if (logger.isTraceEnabled()) {
+					logger.trace("Forwarded {} messages, {} so far", batch.size(), messageCount.get());
+				}
+			} catch (InterruptedException e) {
+				if (running) {
+					logger.error("Plugin has been interrupted while waiting for a message ", e);
+				}
+				Thread.currentThread().interrupt();
+				break;
+			} finally {
+				batch.clear();
+			}
+		}
 	}
 
 	/**
-	 * Takes a message and adds the current message count of the plugin and provenance to prevent looping.
+	 * Takes a message and adds the current message count of the plugin and provenance to prevent looping. Each message
+	 * gets its own count, also with several workers.
 	 *
 	 * @param incomingMessage the received message to be processed.
 	 * @return The processed message with appended message count and provenance
 	 */
 	protected Message generateMessage(Message incomingMessage) {
-		messageCount += 1;
-		Message.Builder messageBuilder = incomingMessage.toBuilder();
+		long count = messageCount.incrementAndGet();
+		Message.Builder messageBuilder = messageCountDetail.toBuilder(incomingMessage, count);
 
 		if (outputGroups != null) {
 			messageBuilder.clearGroups();
 			outputGroups.forEach(messageBuilder::addGroups);
 		}
 
-		String xmlDetail = messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().getXmlDetail();
-		xmlDetail += "<messageCount>" + messageCount + "</messageCount>";
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().clearXmlDetail();
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().setXmlDetail(xmlDetail);
 		messageBuilder.addProvenance(MessageForwarderPlugin.class.getName()); //Adding provenance to prevent looping
 
 		return messageBuilder.build();
@@ -110,41 +332,65 @@ public class MessageForwarderPlugin extends MessageSenderReceiverBase {
 
 	/**
 	 * Receives messages and adds them to a queue. Checks the provenance to make sure that the message didn't originate
-	 * from the plugin itself.
+	 * from the plugin itself, and that the message is in one of the input groups, if any are configured.
 	 *
 	 * @param message the message received by the plugin
 	 */
 	@Override
 	public void onMessage(Message message) {
 
-		logger.info("Message received from TAK server: {}", message);
+		if (logger.isTraceEnabled()) {
+			logger.trace("Message received from TAK server: {}", message);
+		}
+
+		if (messageFilter.accepts(message)) {
+			messageQueues[shardOf(message, messageQueues.length)].offer(message);
+		}
+	}
 
-		// Provenance is checked to prevent looping
-		if (!message.toBuilder().getProvenanceList().contains(MessageForwarderPlugin.class.getName())) {
-			boolean hasInputGroup = false;
-			if (inputGroups != null) {
-				for (String group : inputGroups) {
-					if (inputGroups.contains(group)) {
-						hasInputGroup = true;
-						break;
-					}
+	/**
+	 * Stops the plugin and waits for the drain threads to finish the batches they are forwarding. The threads see the
+	 * plugin stopped after their current batch, or within idleWaitMs if they are waiting for messages. Threads still
+	 * running after STOP_TIMEOUT_MS are interrupted.
+	 */
+	@Override
+	public void stop() {
+		running = false;
+		if (statsFuture != null) {
+			statsFuture.cancel(false);
+		}
+		if (drainThreads != null) {
+			long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+			try {
+				for (Thread drainThread : drainThreads) {
+					// join(0) would wait forever
+					drainThread.join(Math.max(1, deadline - System.currentTimeMillis()));
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-			if (inputGroups == null || hasInputGroup) {
-				logger.info("Put message in queue...");
-				messageQueue.offer(message);
+			for (Thread drainThread : drainThreads) {
+				if (drainThread.isAlive()) {
+					logger.warn("{} did not stop within {} ms, interrupting it", drainThread.getName(), STOP_TIMEOUT_MS);
+					drainThread.interrupt();
+				}
 			}
 		}
+		logQueues();
+		logger.info("Stopped {} after forwarding {} messages", getClass().getName(), messageCount.get());
 	}
 
 	/**
-	 * Stops the plugin and cancels future tasks.
+	 * @return the lanes of each worker, with their queue depth, drop counts and mean wait time
 	 */
-	@Override
-	public void stop() {
-	    if (future != null) {
-	        future.cancel(true);
-	    }
+	public List<PriorityLanes> getWorkerQueues() {
+		return List.of(messageQueues);
+	}
+
+	private void logQueues() {
+		for (int i = 0; i < messageQueues.length; i++) {
+			logger.info("Worker {} queues - {}", i, messageQueues[i]);
+		}
 	}
 
 }
@@ -0,0 +1,361 @@
+package tak.server.plugins;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for many producer and many consumer threads, backed by a preallocated ring of slots, as
+ * Dmitry Vyukov's bounded MPMC queue. Each slot carries a sequence number that tells producers and consumers whether it
+ * is free or filled, so an offer is one compare-and-set on the tail and a poll one on the head, with no lock shared
+ * between them. A full queue rejects offers instead of blocking producers, unless they call the blocking methods. The
+ * capacity is rounded up to a power of two, so a queue of 1000 holds up to 1024 elements.
+ *
+ * <p>The forwarder drains it with one thread, but other threads also poll, e.g. to drop the oldest element when the
+ * queue is full, at the cost of contending on the head.
+ *
+ * <p>Iterators are weakly consistent: they return a snapshot of the elements queued when the iterator was created, and
+ * never throw {@link java.util.ConcurrentModificationException}. Removing an element that is not at the head, through
+ * {@link #remove(Object)} or an iterator, replaces it with a marker that consumers skip, so its slot stays taken until
+ * the consumers pass it.
+ *
+ * <p>The blocking methods wait according to the {@link WaitStrategy}, which trades latency for CPU while the queue is
+ * empty (or full).
+ *
+ * @param <E> element type
+ */
+public class MpmcRingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	/**
+	 * How a thread waits for the queue to become non-empty (or non-full).
+	 */
+	public enum WaitStrategy {
+
+		/** Spins on the CPU. Lowest latency, but keeps a core busy while waiting. */
+		BUSY_SPIN {
+			@Override
+			void idle() {
+				Thread.onSpinWait();
+			}
+		},
+
+		/** Yields the CPU to other threads between checks. */
+		YIELD {
+			@Override
+			void idle() {
+				Thread.yield();
+			}
+		},
+
+		/** Sleeps briefly between checks. Uses almost no CPU while idle, and adds up to the park time to latency. */
+		PARK {
+			@Override
+			void idle() {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		};
+
+		private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+		abstract void idle();
+
+		public static WaitStrategy fromConfig(String value) {
+			if (value == null) {
+				return PARK;
+			}
+			switch (value.toLowerCase()) {
+			case "busyspin":
+				return BUSY_SPIN;
+			case "yield":
+				return YIELD;
+			case "park":
+				return PARK;
+			default:
+				throw new IllegalArgumentException("unknown wait strategy: " + value);
+			}
+		}
+	}
+
+	// takes the place of a removed element until a consumer passes its slot
+	private static final Object REMOVED = new Object();
+
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<Object> slots;
+	// a slot is free for the producer claiming position p when its sequence is p, and filled when it is p + 1
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	private final WaitStrategy waitStrategy;
+
+	/**
+	 * @param capacity maximum number of elements, rounded up to a power of two, e.g. 1000 to 1024
+	 * @param waitStrategy how the blocking methods wait
+	 */
+	public MpmcRingBuffer(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		this.capacity = roundUp(capacity);
+		this.mask = this.capacity - 1;
+		this.slots = new AtomicReferenceArray<>(this.capacity);
+		this.sequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			sequences.set(i, i);
+		}
+		this.waitStrategy = waitStrategy;
+	}
+
+	private static int roundUp(int capacity) {
+		int highest = Integer.highestOneBit(capacity);
+		return highest == capacity ? capacity : highest << 1;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long available = sequences.get(index) - position;
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.setPlain(index, e);
+					// publishes the element to the consumer
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (available < 0) {
+				// the slot still holds the element from one lap ago
+				return false;
+			}
+			// another producer claimed this position, retry with the new tail
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while (true) {
+			long position = head.get();
+			int index = (int) position & mask;
+			long filled = sequences.get(index) - (position + 1);
+			if (filled == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					// a remove racing with this either marked the element first or finds the slot empty
+					Object e = slots.getAndSet(index, null);
+					// frees the slot for the producer one lap ahead
+					sequences.set(index, position + capacity);
+					if (e != REMOVED) {
+						return (E) e;
+					}
+				}
+			} else if (filled < 0) {
+				return null;
+			}
+			// another thread polled this position, or its element was removed, retry with the new head
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		for (long position = head.get(), end = tail.get(); position < end; position++) {
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+			if (sequence < position + 1) {
+				// not published yet
+				return null;
+			}
+			Object e = slots.get(index);
+			// skips elements removed, or polled since the head was read
+			if (sequence == position + 1 && e != REMOVED && e != null) {
+				return (E) e;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!offer(e)) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			waitStrategy.idle();
+		}
+		return true;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		while (!offer(e)) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			waitStrategy.idle();
+		}
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		E e;
+		while ((e = poll()) == null) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (System.nanoTime() - deadline >= 0) {
+				return null;
+			}
+			waitStrategy.idle();
+		}
+		return e;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e;
+		while ((e = poll()) == null) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			waitStrategy.idle();
+		}
+		return e;
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		int drained = 0;
+		E e;
+		while (drained < maxElements && (e = poll()) != null) {
+			c.add(e);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * @return the number of taken slots, which may be stale by the time it is returned, and counts removed elements
+	 * the consumers have not passed yet
+	 */
+	@Override
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity));
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (o == null) {
+			return false;
+		}
+		for (long position = head.get(), end = tail.get(); position < end; position++) {
+			int index = (int) position & mask;
+			Object e = filled(index, position);
+			if (e != null && o.equals(e) && slots.compareAndSet(index, e, REMOVED)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// removes this element rather than any equal one
+	private boolean removeInstance(Object o) {
+		for (long position = head.get(), end = tail.get(); position < end; position++) {
+			int index = (int) position & mask;
+			if (filled(index, position) == o && slots.compareAndSet(index, o, REMOVED)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the element at position, or null if its slot is not filled for that position or the element was removed
+	private Object filled(int index, long position) {
+		long sequence = sequences.get(index);
+		if (sequence != position + 1) {
+			return null;
+		}
+		Object e = slots.get(index);
+		// the slot may have been polled and filled again for a later lap while it was read
+		if (e == REMOVED || sequences.get(index) != sequence) {
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * @return a weakly consistent iterator over a snapshot of the queued elements, from head to tail
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<>();
+		for (long position = head.get(), end = tail.get(); position < end; position++) {
+			Object e = filled((int) position & mask, position);
+			if (e != null) {
+				snapshot.add((E) e);
+			}
+		}
+
+		return new Iterator<E>() {
+
+			private final Iterator<E> elements = snapshot.iterator();
+			private E last;
+
+			@Override
+			public boolean hasNext() {
+				return elements.hasNext();
+			}
+
+			@Override
+			public E next() {
+				last = elements.next();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				// already polled elements are gone, as in the other concurrent queues
+				removeInstance(last);
+				last = null;
+			}
+		};
+	}
+}
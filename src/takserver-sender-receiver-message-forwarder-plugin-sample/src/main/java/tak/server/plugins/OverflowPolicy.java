@@ -0,0 +1,37 @@
+package tak.server.plugins;
+
+/**
+ * What a {@link ForwarderQueue} does with a message that arrives while it is full.
+ */
+public enum OverflowPolicy {
+
+	/** Discard the arriving message. */
+	DROP_NEWEST,
+
+	/** Discard the oldest queued messages to make room, so the latest positions are kept. */
+	DROP_OLDEST,
+
+	/** Wait for room, for at most the block timeout, then discard the arriving message. */
+	BLOCK,
+
+	/** Replace queued messages with the same CoT UID. If there are none, discard the oldest queued message. */
+	COALESCE;
+
+	public static OverflowPolicy fromConfig(String value) {
+		if (value == null) {
+			return DROP_NEWEST;
+		}
+		switch (value.toLowerCase()) {
+		case "dropnewest":
+			return DROP_NEWEST;
+		case "dropoldest":
+			return DROP_OLDEST;
+		case "block":
+			return BLOCK;
+		case "coalesce":
+			return COALESCE;
+		default:
+			throw new IllegalArgumentException("unknown overflow policy: " + value);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package tak.server.plugins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+
+/**
+ * Messages waiting to be forwarded, split into lanes by CoT type so urgent messages, such as emergencies, are not queued
+ * behind a backlog of position updates. Each lane has its own bounded {@link ForwarderQueue}, and the
+ * {@link Scheduling} decides which lane is drained next.
+ *
+ * <p>Lanes match CoT type prefixes, a trailing {@code *} is allowed, e.g. {@code b-a-o-*}. A message goes to the first
+ * lane matching its type, and the last lane takes every message matching no other lane.
+ *
+ * <p>Any thread may offer messages, but only one thread may drain them.
+ */
+public class PriorityLanes {
+
+	/**
+	 * How the draining thread chooses between lanes.
+	 */
+	public enum Scheduling {
+
+		/** Always drain the first non-empty lane, in lane order. Lower lanes wait while higher lanes have messages. */
+		STRICT,
+
+		/** Take up to weight messages from each lane in turn, so every lane gets a share in proportion to its weight. */
+		WEIGHTED;
+
+		public static Scheduling fromConfig(String value) {
+			if (value == null) {
+				return STRICT;
+			}
+			switch (value.toLowerCase()) {
+			case "strict":
+				return STRICT;
+			case "weighted":
+				return WEIGHTED;
+			default:
+				throw new IllegalArgumentException("unknown lane scheduling: " + value);
+			}
+		}
+	}
+
+	/**
+	 * A lane and its metrics. The mean wait time is estimated from the lane's queue depth over time divided by the
+	 * messages forwarded (Little's law), so no timestamp is kept per message.
+	 */
+	public static class Lane {
+
+		private final String name;
+		private final List<String> typePrefixes = new ArrayList<>();
+		private final int weight;
+		private final ForwarderQueue queue;
+
+		private final LongAdder forwarded = new LongAdder();
+		// queue depth integrated over time, in message nanoseconds, only updated by the draining thread
+		private volatile long depthNanos;
+		private int lastDepth;
+
+		/**
+		 * @param name name used in logs
+		 * @param types CoT type prefixes of the messages in the lane
+		 * @param weight share of the lane under weighted scheduling
+		 * @param queue the lane's queue
+		 */
+		public Lane(String name, List<String> types, int weight, ForwarderQueue queue) {
+			if (weight < 1) {
+				throw new IllegalArgumentException("lane " + name + " weight must be positive: " + weight);
+			}
+			this.name = name;
+			for (String type : types) {
+				typePrefixes.add(type.endsWith("*") ? type.substring(0, type.length() - 1) : type);
+			}
+			this.weight = weight;
+			this.queue = queue;
+		}
+
+		boolean matches(String type) {
+			for (String typePrefix : typePrefixes) {
+				if (type.startsWith(typePrefix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public ForwarderQueue getQueue() {
+			return queue;
+		}
+
+		public long getForwarded() {
+			return forwarded.sum();
+		}
+
+		public double getMeanWaitMs() {
+			long count = forwarded.sum();
+			return count == 0 ? 0 : depthNanos / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		@Override
+		public String toString() {
+			return name + " lane - forwarded: " + getForwarded() + " mean wait ms: "
+					+ String.format("%.3f", getMeanWaitMs()) + " " + queue;
+		}
+	}
+
+	private final Lane[] lanes;
+	private final Scheduling scheduling;
+
+	// the draining thread while it is parked waiting for a message
+	private volatile Thread waiter;
+
+	// only used by the draining thread
+	private long lastSample;
+	private int current;
+	private int credit;
+	private final List<Message> polled = new ArrayList<>(1);
+
+	/**
+	 * @param lanes the lanes in priority order, the last one takes messages matching no other lane
+	 * @param scheduling how lanes are drained
+	 */
+	public PriorityLanes(List<Lane> lanes, Scheduling scheduling) {
+		if (lanes.isEmpty()) {
+			throw new IllegalArgumentException("at least one lane is required");
+		}
+		this.lanes = lanes.toArray(new Lane[0]);
+		this.scheduling = scheduling;
+		this.credit = this.lanes[0].weight;
+	}
+
+	/**
+	 * Adds a message to its lane, applying the lane's overflow policy if it is full.
+	 *
+	 * @return false if the message was discarded
+	 */
+	public boolean offer(Message message) {
+		boolean offered = laneOf(message.getPayload().getCotEvent().getType()).queue.offer(message);
+		Thread parked = waiter;
+		if (parked != null) {
+			LockSupport.unpark(parked);
+		}
+		return offered;
+	}
+
+	Lane laneOf(String type) {
+		for (int i = 0; i < lanes.length - 1; i++) {
+			if (lanes[i].matches(type)) {
+				return lanes[i];
+			}
+		}
+		return lanes[lanes.length - 1];
+	}
+
+	/**
+	 * Takes the next message according to the scheduling, waiting for one if all lanes are empty.
+	 *
+	 * @return the message, or null if none arrived before the timeout
+	 */
+	public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+		if (lanes.length == 1) {
+			// waits on the queue itself, with the queue's own wait strategy
+			Lane lane = lanes[0];
+			sampleDepths();
+			Message message = lane.queue.poll(timeout, unit);
+			if (message != null) {
+				lane.forwarded.increment();
+				lane.lastDepth = lane.queue.size();
+			}
+			return message;
+		}
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			if (drainTo(polled, 1) == 1) {
+				Message message = polled.get(0);
+				polled.clear();
+				return message;
+			}
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			waiter = Thread.currentThread();
+			// a message offered before the waiter was set did not unpark this thread
+			if (isEmpty()) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waiter = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Takes up to maxMessages messages according to the scheduling, without waiting.
+	 *
+	 * @return the number of messages taken
+	 */
+	public int drainTo(Collection<? super Message> messages, int maxMessages) {
+		sampleDepths();
+		int drained = scheduling == Scheduling.STRICT ? drainStrict(messages, maxMessages)
+				: drainWeighted(messages, maxMessages);
+
+		if (drained > 0) {
+			for (Lane lane : lanes) {
+				lane.lastDepth = lane.queue.size();
+			}
+		}
+		return drained;
+	}
+
+	// adds the time since the last sample to the depth integral of each lane, averaging the depths at both ends
+	private void sampleDepths() {
+		long now = System.nanoTime();
+		for (Lane lane : lanes) {
+			int depth = lane.queue.size();
+			if (lastSample != 0) {
+				lane.depthNanos += (lane.lastDepth + depth) * (now - lastSample) / 2;
+			}
+			lane.lastDepth = depth;
+		}
+		lastSample = now;
+	}
+
+	private int drainStrict(Collection<? super Message> messages, int maxMessages) {
+		int drained = 0;
+		for (Lane lane : lanes) {
+			if (drained == maxMessages) {
+				break;
+			}
+			int taken = lane.queue.drainTo(messages, maxMessages - drained);
+			lane.forwarded.add(taken);
+			drained += taken;
+		}
+		return drained;
+	}
+
+	// weighted round robin, the current lane and its remaining credit carry over to the next call
+	private int drainWeighted(Collection<? super Message> messages, int maxMessages) {
+		int drained = 0;
+		int emptyLanes = 0;
+		while (drained < maxMessages && emptyLanes < lanes.length) {
+			Lane lane = lanes[current];
+			int requested = Math.min(credit, maxMessages - drained);
+			int taken = lane.queue.drainTo(messages, requested);
+			lane.forwarded.add(taken);
+			drained += taken;
+			credit -= taken;
+
+			if (credit == 0 || taken < requested) {
+				// the lane used its turn, or ran out of messages
+				emptyLanes = taken == 0 ? emptyLanes + 1 : 0;
+				current = (current + 1) % lanes.length;
+				credit = lanes[current].weight;
+			}
+		}
+		return drained;
+	}
+
+	public boolean isEmpty() {
+		for (Lane lane : lanes) {
+			if (lane.queue.size() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Lane lane : lanes) {
+			size += lane.queue.size();
+		}
+		return size;
+	}
+
+	public List<Lane> getLanes() {
+		return List.of(lanes);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Lane lane : lanes) {
+			if (builder.length() > 0) {
+				builder.append("; ");
+			}
+			builder.append(lane);
+		}
+		return builder.toString();
+	}
+}
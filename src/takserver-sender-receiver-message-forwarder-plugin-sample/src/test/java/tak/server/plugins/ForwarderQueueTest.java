@@ -0,0 +1,145 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ForwarderQueueTest {
+
+    @Test
+    public void dropNewestShouldDiscardArrivingMessage() {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(2), OverflowPolicy.DROP_NEWEST, 0);
+
+        assertTrue(queue.offer(message("a", 1)));
+        assertTrue(queue.offer(message("b", 1)));
+        assertFalse(queue.offer(message("c", 1)));
+
+        assertEquals(Arrays.asList("a:1", "b:1"), drain(queue));
+        assertEquals(1, queue.getDroppedNewest());
+    }
+
+    @Test
+    public void dropOldestShouldKeepArrivingMessage() {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(2), OverflowPolicy.DROP_OLDEST, 0);
+
+        queue.offer(message("a", 1));
+        queue.offer(message("b", 1));
+        assertTrue(queue.offer(message("c", 1)));
+
+        assertEquals(Arrays.asList("b:1", "c:1"), drain(queue));
+        assertEquals(1, queue.getDroppedOldest());
+    }
+
+    @Test
+    public void blockShouldWaitForRoom() throws Exception {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(1), OverflowPolicy.BLOCK, 5000);
+        queue.offer(message("a", 1));
+
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                queue.drainTo(new ArrayList<>(), 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+
+        assertTrue(queue.offer(message("b", 1)));
+        consumer.join();
+        assertEquals(Arrays.asList("b:1"), drain(queue));
+    }
+
+    @Test
+    public void blockShouldDiscardAfterTimeout() {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(1), OverflowPolicy.BLOCK, 10);
+
+        queue.offer(message("a", 1));
+        assertFalse(queue.offer(message("b", 1)));
+
+        assertEquals(1, queue.getTimedOut());
+    }
+
+    @Test
+    public void coalesceShouldReplaceMessagesWithSameUid() {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(3), OverflowPolicy.COALESCE, 0);
+
+        queue.offer(message("a", 1));
+        queue.offer(message("b", 1));
+        queue.offer(message("a", 2));
+        assertTrue(queue.offer(message("a", 3)));
+
+        assertEquals(Arrays.asList("b:1", "a:3"), drain(queue));
+        assertEquals(1, queue.getCoalesced());
+        assertEquals(0, queue.getDroppedOldest());
+    }
+
+    @Test
+    public void coalesceShouldDropOldestWhenNoUidMatches() {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(2), OverflowPolicy.COALESCE, 0);
+
+        queue.offer(message("a", 1));
+        queue.offer(message("b", 1));
+        assertTrue(queue.offer(message("c", 1)));
+
+        assertEquals(Arrays.asList("b:1", "c:1"), drain(queue));
+        assertEquals(1, queue.getDroppedOldest());
+    }
+
+    @Test
+    public void coalesceShouldNotReplaceMessagesWithoutUid() {
+        ForwarderQueue queue = new ForwarderQueue(new ArrayBlockingQueue<>(2), OverflowPolicy.COALESCE, 0);
+
+        queue.offer(message("", 1));
+        queue.offer(message("", 2));
+        assertTrue(queue.offer(message("", 3)));
+
+        assertEquals(Arrays.asList(":2", ":3"), drain(queue));
+        assertEquals(0, queue.getCoalesced());
+        assertEquals(1, queue.getDroppedOldest());
+    }
+
+    @Test
+    public void coalescingQueueShouldKeepMessagesWithoutUid() {
+        BlockingQueue<Message> coalescing = MessageForwarderPlugin.createQueue("coalescing", 3, Collections.emptyList(),
+                null, null, Collections.emptyMap(), 0);
+        ForwarderQueue queue = new ForwarderQueue(coalescing, OverflowPolicy.DROP_NEWEST, 0);
+
+        queue.offer(message("", 1));
+        queue.offer(message("a", 1));
+        queue.offer(message("", 2));
+        queue.offer(message("a", 2));
+
+        assertEquals(Arrays.asList(":1", "a:2", ":2"), drain(queue));
+        assertEquals(1, queue.getCoalesced());
+    }
+
+    private static List<String> drain(ForwarderQueue queue) {
+        List<Message> messages = new ArrayList<>();
+        queue.drainTo(messages, Integer.MAX_VALUE);
+        List<String> events = new ArrayList<>();
+        for (Message message : messages) {
+            CotEvent event = message.getPayload().getCotEvent();
+            events.add(event.getUid() + ":" + event.getSendTime());
+        }
+        return events;
+    }
+
+    private static Message message(String uid, long time) {
+        return Message.newBuilder()
+                .setPayload(TakMessage.newBuilder().setCotEvent(CotEvent.newBuilder().setUid(uid).setSendTime(time)))
+                .build();
+    }
+}
@@ -0,0 +1,255 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GroupFairQueueTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // messages with two character uids in one of these groups all have this serialized size
+    private static final int SIZE = message("d0", "drone").getSerializedSize();
+
+    private static GroupFairQueue queue(int capacity, Map<String, GroupFairQueue.Quota> quotas) {
+        return new GroupFairQueue(capacity, new GroupFairQueue.Quota(SIZE, capacity, Long.MAX_VALUE), quotas);
+    }
+
+    @Test
+    public void groupSetShouldNameSortedGroups() {
+        assertEquals("", GroupFairQueue.groupSet(message("x")));
+        assertEquals("bravo", GroupFairQueue.groupSet(message("x", "bravo")));
+        assertEquals("alpha,bravo", GroupFairQueue.groupSet(message("x", "bravo", "alpha")));
+    }
+
+    @Test
+    public void groupsShouldTakeTurns() {
+        assertEquals(SIZE, message("t0", "squad").getSerializedSize());
+        GroupFairQueue queue = queue(100, new HashMap<>());
+        for (int i = 0; i < 5; i++) {
+            queue.offer(message("d" + i, "drone"));
+        }
+        queue.offer(message("t0", "squad"));
+        queue.offer(message("t1", "squad"));
+
+        assertEquals(Arrays.asList("d0", "t0", "d1", "t1", "d2", "d3", "d4"), drain(queue));
+        assertEquals(2, queue.getGroupCount());
+        assertEquals(5, queue.getForwarded("drone"));
+    }
+
+    @Test
+    public void quantumShouldSetShareOfEachGroup() {
+        Map<String, GroupFairQueue.Quota> quotas = new HashMap<>();
+        quotas.put("squad", new GroupFairQueue.Quota(3 * SIZE, 100, Long.MAX_VALUE));
+        GroupFairQueue queue = queue(100, quotas);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(message("d" + i, "drone"));
+            queue.offer(message("t" + i, "squad"));
+        }
+
+        assertEquals(Arrays.asList("d0", "t0", "t1", "t2", "d1", "t3", "d2", "d3"), drain(queue));
+    }
+
+    @Test
+    public void offerShouldRejectGroupOverQuota() {
+        Map<String, GroupFairQueue.Quota> quotas = new HashMap<>();
+        quotas.put("drone", new GroupFairQueue.Quota(SIZE, 2, Long.MAX_VALUE));
+        Message both = message("ab", "bravo", "alpha");
+        quotas.put("alpha,bravo", new GroupFairQueue.Quota(SIZE, 10, both.getSerializedSize()));
+        GroupFairQueue queue = queue(100, quotas);
+
+        assertTrue(queue.offer(message("d0", "drone")));
+        assertTrue(queue.offer(message("d1", "drone")));
+        assertFalse(queue.offer(message("d2", "drone")));
+        assertTrue(queue.offer(message("t0", "squad")));
+
+        assertTrue(queue.offer(both));
+        assertFalse(queue.offer(message("ba", "alpha", "bravo")));
+
+        assertEquals(1, queue.getRejected("drone"));
+        assertEquals(1, queue.getRejected("alpha,bravo"));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void dropOldestShouldDropFromGroupOverQuotaOrLargestGroup() {
+        Map<String, GroupFairQueue.Quota> quotas = new HashMap<>();
+        quotas.put("drone", new GroupFairQueue.Quota(SIZE, 3, Long.MAX_VALUE));
+        ForwarderQueue queue = new ForwarderQueue(queue(4, quotas), OverflowPolicy.DROP_OLDEST, 0);
+
+        queue.offer(message("t0", "squad"));
+        queue.offer(message("d0", "drone"));
+        queue.offer(message("d1", "drone"));
+        queue.offer(message("d2", "drone"));
+        // the drone group is over its quota
+        assertTrue(queue.offer(message("d3", "drone")));
+        // the queue is full, the drone group has the most queued
+        assertTrue(queue.offer(message("t1", "squad")));
+
+        List<Message> messages = new ArrayList<>();
+        queue.drainTo(messages, 10);
+        assertEquals(Arrays.asList("t0", "d2", "t1", "d3"), uids(messages));
+        assertEquals(2, queue.getDroppedOldest());
+    }
+
+    @Test
+    public void messagesInSameGroupsShouldShareGroupSetInAnyOrder() {
+        GroupFairQueue queue = queue(100, new HashMap<>());
+        queue.offer(message("a0", "bravo", "alpha"));
+        queue.offer(message("a1", "alpha", "bravo"));
+        queue.offer(message("a2", "bravo", "alpha"));
+
+        assertEquals(Arrays.asList("a0", "a1", "a2"), drain(queue));
+        assertEquals(1, queue.getGroupCount());
+        assertEquals(3, queue.getForwarded("alpha,bravo"));
+    }
+
+    @Test
+    public void idleGroupsShouldBeEvicted() throws Exception {
+        GroupFairQueue queue = new GroupFairQueue(100, new GroupFairQueue.Quota(SIZE, 100, Long.MAX_VALUE),
+                new HashMap<>(), 10);
+        queue.offer(message("i0", "idle", "other"));
+        assertEquals(Arrays.asList("i0"), drain(queue));
+        queue.offer(message("b0", "busy"));
+        assertEquals(2, queue.getGroupCount());
+
+        Thread.sleep(50);
+        queue.offer(message("n0", "new"));
+
+        // the busy group still has a message queued
+        assertEquals(2, queue.getGroupCount());
+        assertEquals(0, queue.getForwarded("idle,other"));
+        assertEquals(Arrays.asList("b0", "n0"), drain(queue));
+
+        queue.offer(message("i1", "other", "idle"));
+        assertEquals(Arrays.asList("i1"), drain(queue));
+        assertEquals(1, queue.getForwarded("idle,other"));
+    }
+
+    @Test
+    public void iteratorShouldReturnQueuedMessagesAndRemoveThem() {
+        GroupFairQueue queue = queue(100, new HashMap<>());
+        queue.offer(message("d0", "drone"));
+        queue.offer(message("t0", "squad"));
+        queue.offer(message("d1", "drone"));
+        queue.offer(message("d2", "drone"));
+
+        Iterator<Message> iterator = queue.iterator();
+        // messages queued after the iterator was created are not returned
+        queue.offer(message("t1", "squad"));
+        List<Message> messages = new ArrayList<>();
+        iterator.forEachRemaining(messages::add);
+        assertEquals(Arrays.asList("d0", "d1", "d2", "t0"), uids(messages));
+
+        assertTrue(queue.remove(messages.get(1)));
+        assertTrue(queue.removeIf(message -> message.getPayload().getCotEvent().getUid().startsWith("t")));
+        assertEquals(2, queue.size());
+        assertEquals(Arrays.asList("d0", "d2"), drain(queue));
+    }
+
+    @Test
+    public void coalescePolicyShouldReplaceQueuedMessage() {
+        ForwarderQueue queue = new ForwarderQueue(queue(2, new HashMap<>()), OverflowPolicy.COALESCE, 0);
+        queue.offer(message("d0", "drone"));
+        queue.offer(message("t0", "squad"));
+
+        assertTrue(queue.offer(message("d0", "drone")));
+
+        assertEquals(1, queue.getCoalesced());
+        assertEquals(0, queue.getDroppedOldest());
+        List<Message> messages = new ArrayList<>();
+        queue.drainTo(messages, 10);
+        assertEquals(Arrays.asList("t0", "d0"), uids(messages));
+    }
+
+    @Test
+    public void pollShouldWaitForMessage() throws Exception {
+        GroupFairQueue queue = queue(10, new HashMap<>());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        new Thread(() -> queue.offer(message("t0", "squad"))).start();
+
+        assertEquals("t0", queue.poll(5, TimeUnit.SECONDS).getPayload().getCotEvent().getUid());
+    }
+
+    /**
+     * A drone feed floods its group while a squad sends a message every 100 drone frames, and the forwarder keeps up
+     * with half of the traffic. Each group may have up to half of the queue. Reports how many squad messages each queue
+     * forwards.
+     */
+    @Test
+    public void benchmarkNoisyGroup() {
+        int frames = 100000;
+
+        long[] array = flood(new ArrayBlockingQueue<>(1000), frames);
+        long[] fair = flood(new GroupFairQueue(1000, new GroupFairQueue.Quota(SIZE, 500, Long.MAX_VALUE),
+                new HashMap<>()), frames);
+
+        logger.info("{} drone frames, {} squad messages - array queue forwarded {} drone, {} squad; group fair queue forwarded {} drone, {} squad",
+                frames, frames / 100, array[0], array[1], fair[0], fair[1]);
+        assertEquals(frames / 100, fair[1]);
+        assertTrue(array[1] < fair[1]);
+    }
+
+    // returns drone and squad messages forwarded
+    private static long[] flood(BlockingQueue<Message> queue, int frames) {
+        Message drone = message("drone", "drone");
+        Message squad = message("squad", "squad");
+        long[] forwarded = new long[2];
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            queue.offer(drone);
+            if (i % 100 == 0) {
+                queue.offer(squad);
+            }
+            if (i % 2 == 0) {
+                queue.drainTo(batch, 1);
+            }
+        }
+        queue.drainTo(batch);
+        for (Message message : batch) {
+            forwarded[message == drone ? 0 : 1]++;
+        }
+        return forwarded;
+    }
+
+    private static List<String> drain(BlockingQueue<Message> queue) {
+        List<Message> messages = new ArrayList<>();
+        queue.drainTo(messages);
+        return uids(messages);
+    }
+
+    private static List<String> uids(List<Message> messages) {
+        List<String> uids = new ArrayList<>();
+        for (Message message : messages) {
+            uids.add(message.getPayload().getCotEvent().getUid());
+        }
+        return uids;
+    }
+
+    private static Message message(String uid, String... groups) {
+        return Message.newBuilder()
+                .setPayload(TakMessage.newBuilder().setCotEvent(CotEvent.newBuilder().setUid(uid)))
+                .addAllGroups(Arrays.asList(groups))
+                .build();
+    }
+}
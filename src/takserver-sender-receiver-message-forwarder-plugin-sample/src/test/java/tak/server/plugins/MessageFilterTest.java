@@ -0,0 +1,107 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tak.server.plugins.messaging.MessageConverter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageFilterTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String PROVENANCE = MessageForwarderPlugin.class.getName();
+
+    private static final String SA = "<event version=\"2.0\" uid=\"ANDROID-352413144215585\" type=\"a-f-G-U-C\" how=\"m-g\" time=\"2020-02-12T13:16:07Z\" start=\"2020-02-12T13:16:05Z\" stale=\"2020-02-12T13:16:50Z\"><point lat=\"40.255716\" lon=\"-72.045306\" hae=\"-22.22983896651138\" ce=\"4.9\" le=\"9999999.0\"/><detail><__group name=\"Dark Blue\" role=\"Team Member\"/><precisionlocation geopointsrc=\"GPS\" altsrc=\"GPS\"/><status battery=\"32\"/><takv device=\"SAMSUNG SM-G975U1\" platform=\"ATAK-CIV\" os=\"29\" version=\"3.12.0-45691.45691-CIV\"/><track speed=\"0.0\" course=\"344.72362164876733\"/><contact endpoint=\"*:-1:stcp\" phone=\"19999999999\" callsign=\"coolata\"/><uid Droid=\"coolata\"/></detail></event>";
+
+    private static Message message(String... groups) throws Exception {
+        return new MessageConverter().cotStringToDataMessage(SA, new HashSet<>(Arrays.asList(groups)), "test");
+    }
+
+    private static Set<String> groups(String... groups) {
+        return new HashSet<>(Arrays.asList(groups));
+    }
+
+    @Test
+    public void shouldRejectOwnMessages() throws Exception {
+        MessageFilter filter = new MessageFilter(PROVENANCE, null);
+
+        assertTrue(filter.accepts(message("alpha")));
+        assertFalse(filter.accepts(message("alpha").toBuilder().addProvenance(PROVENANCE).build()));
+    }
+
+    @Test
+    public void shouldOnlyAcceptMessagesInInputGroups() throws Exception {
+        MessageFilter filter = new MessageFilter(PROVENANCE, groups("alpha", "bravo"));
+
+        assertTrue(filter.accepts(message("bravo")));
+        assertTrue(filter.accepts(message("charlie", "alpha")));
+        assertFalse(filter.accepts(message("charlie")));
+        assertFalse(filter.accepts(message()));
+    }
+
+    /**
+     * Measures the bytes allocated per rejected message by the filter and by the check it replaced, which copied the
+     * message into a builder to read its provenance and compared the input groups with themselves.
+     */
+    @Test
+    public void benchmarkAllocationsPerRejectedMessage() throws Exception {
+        Set<String> inputGroups = groups("alpha", "bravo");
+        Message ownMessage = message("alpha").toBuilder().addProvenance(PROVENANCE).build();
+        Message otherGroup = message("charlie");
+
+        MessageFilter filter = new MessageFilter(PROVENANCE, inputGroups);
+        Predicate<Message> previous = message -> {
+            if (message.toBuilder().getProvenanceList().contains(PROVENANCE)) {
+                return false;
+            }
+            for (String group : inputGroups) {
+                if (inputGroups.contains(group)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+
+        double filterOwn = bytesPerCall(filter::accepts, ownMessage);
+        double filterGroup = bytesPerCall(filter::accepts, otherGroup);
+        double previousOwn = bytesPerCall(previous, ownMessage);
+
+        logger.info("bytes allocated per rejected message - filter: {} (own message), {} (other group); previous check: {} (own message)",
+                filterOwn, filterGroup, previousOwn);
+        assertTrue(filterOwn < 1);
+        assertTrue(filterGroup < 1);
+        // the previous check let messages from any group through
+        assertTrue(previous.test(otherGroup));
+    }
+
+    private static double bytesPerCall(Predicate<Message> check, Message message) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int calls = 1000000;
+        boolean accepted = false;
+
+        // warm up, so the measured calls run compiled code
+        for (int i = 0; i < calls; i++) {
+            accepted |= check.test(message);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < calls; i++) {
+            accepted |= check.test(message);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertFalse(accepted);
+        return (double) allocated / calls;
+    }
+}
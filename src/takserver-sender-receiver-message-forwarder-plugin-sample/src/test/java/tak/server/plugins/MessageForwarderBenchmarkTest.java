@@ -0,0 +1,96 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tak.server.plugins.messaging.MessageConverter;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the forwarder's batching drain thread with the scheduled loop it replaced, which took one message per 10 ms
+ * tick. A producer thread offers messages as fast as the queue accepts them, and the number forwarded in a fixed window
+ * is reported.
+ */
+public class MessageForwarderBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final long WINDOW_MS = 2000;
+
+    private static final String SA = "<event version=\"2.0\" uid=\"ANDROID-352413144215585\" type=\"a-f-G-U-C\" how=\"m-g\" time=\"2020-02-12T13:16:07Z\" start=\"2020-02-12T13:16:05Z\" stale=\"2020-02-12T13:16:50Z\"><point lat=\"40.255716\" lon=\"-72.045306\" hae=\"-22.22983896651138\" ce=\"4.9\" le=\"9999999.0\"/><detail><__group name=\"Dark Blue\" role=\"Team Member\"/><precisionlocation geopointsrc=\"GPS\" altsrc=\"GPS\"/><status battery=\"32\"/><takv device=\"SAMSUNG SM-G975U1\" platform=\"ATAK-CIV\" os=\"29\" version=\"3.12.0-45691.45691-CIV\"/><track speed=\"0.0\" course=\"344.72362164876733\"/><contact endpoint=\"*:-1:stcp\" phone=\"19999999999\" callsign=\"coolata\"/><uid Droid=\"coolata\"/></detail></event>";
+
+    private final AtomicLong forwarded = new AtomicLong();
+
+    private final MessageForwarderPlugin plugin = new MessageForwarderPlugin() {
+        @Override
+        public void send(Message message) {
+            forwarded.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void benchmarkDrainThreadAgainstScheduledTake() throws Exception {
+        Message message = new MessageConverter().cotStringToDataMessage(SA, new HashSet<>(),
+                Integer.toString(System.identityHashCode(this)));
+
+        long scheduled = runScheduledTake(message);
+        long drained = runDrainThread(message);
+
+        logger.info("scheduled take: {} msgs/s, drain thread: {} msgs/s", scheduled * 1000 / WINDOW_MS,
+                drained * 1000 / WINDOW_MS);
+        assertTrue(drained > scheduled);
+    }
+
+    // the loop the drain thread replaced: one blocking take per 10 ms tick
+    private long runScheduledTake(Message message) throws Exception {
+        ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<>(1000);
+        ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
+        forwarded.set(0);
+        worker.scheduleWithFixedDelay(() -> {
+            try {
+                plugin.send(plugin.generateMessage(queue.take()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        produce(() -> queue.offer(message));
+
+        worker.shutdownNow();
+        return forwarded.get();
+    }
+
+    private long runDrainThread(Message message) throws Exception {
+        forwarded.set(0);
+        plugin.start();
+
+        produce(() -> plugin.onMessage(message));
+
+        plugin.stop();
+        return forwarded.get();
+    }
+
+    private void produce(Runnable offer) throws InterruptedException {
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            while (producing.get()) {
+                offer.run();
+            }
+        });
+        producer.start();
+        Thread.sleep(WINDOW_MS);
+        producing.set(false);
+        producer.join();
+    }
+}
@@ -10,10 +10,19 @@ import org.mockito.junit.MockitoJUnitRunner;
 import tak.server.plugins.messaging.MessageConverter;
 
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -34,7 +43,48 @@ public class MessageForwarderPluginTest {
     {
         plugin.onMessage(messageConverter.cotStringToDataMessage(SA, new HashSet<>(), Integer.toString(System.identityHashCode(plugin))));
         plugin.start();
-        verify(plugin, times(1)).generateMessage(any(Message.class));
+        // forwarded on the plugin's drain thread
+        verify(plugin, timeout(5000).times(1)).generateMessage(any(Message.class));
+        plugin.stop();
+    }
+
+    @Test
+    public void workerQueuesShouldReportForwardedMessages() throws Exception
+    {
+        plugin.onMessage(messageConverter.cotStringToDataMessage(SA, new HashSet<>(), Integer.toString(System.identityHashCode(plugin))));
+        assertEquals(1, plugin.getWorkerQueues().get(0).size());
+
+        plugin.start();
+        verify(plugin, timeout(5000).times(1)).generateMessage(any(Message.class));
+        plugin.stop();
+
+        PriorityLanes.Lane lane = plugin.getWorkerQueues().get(0).getLanes().get(0);
+        assertEquals("default", lane.getName());
+        assertEquals(1, lane.getForwarded());
+        assertEquals(0, lane.getQueue().size());
+    }
+
+    @Test
+    public void stopShouldLetTheBatchInProgressFinish() throws Exception
+    {
+        CountDownLatch forwarding = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        doAnswer(invocation -> {
+            forwarding.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            return invocation.callRealMethod();
+        }).when(plugin).generateMessage(any(Message.class));
+
+        plugin.onMessage(messageConverter.cotStringToDataMessage(SA, new HashSet<>(), Integer.toString(System.identityHashCode(plugin))));
+        plugin.start();
+        assertTrue(forwarding.await(5, TimeUnit.SECONDS));
+        plugin.stop();
+
+        assertFalse(interrupted.get());
     }
 
     @Test
@@ -58,4 +108,39 @@ public class MessageForwarderPluginTest {
                 message2.getPayload().getCotEvent().getDetail().getXmlDetail());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void generateMessageShouldGiveEachMessageItsOwnCountAcrossWorkers() throws Exception {
+        Message incoming = converter.cotStringToDataMessage(SA, new HashSet<>(), Integer.toString(System.identityHashCode(plugin)));
+        Set<String> counts = ConcurrentHashMap.newKeySet();
+        Thread[] workers = new Thread[4];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < 500; j++) {
+                    String xmlDetail = plugin.generateMessage(incoming).getPayload().getCotEvent().getDetail().getXmlDetail();
+                    counts.add(xmlDetail.substring(xmlDetail.indexOf("<messageCount>")));
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(2000, counts.size());
+    }
+
+    @Test
+    public void shardOfShouldKeepEachUidOnOneWorker() throws DocumentException {
+        Set<Integer> shards = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            Message message = converter.cotStringToDataMessage(SA.replace("ANDROID-352413144215585", "ANDROID-" + i),
+                    new HashSet<>(), Integer.toString(System.identityHashCode(plugin)));
+            int shard = MessageForwarderPlugin.shardOf(message, 4);
+            assertTrue(shard >= 0 && shard < 4);
+            assertEquals(shard, MessageForwarderPlugin.shardOf(message.toBuilder().build(), 4));
+            shards.add(shard);
+        }
+        // uids that differ only in their last characters are still spread across the workers
+        assertEquals(4, shards.size());
+    }
+
+}
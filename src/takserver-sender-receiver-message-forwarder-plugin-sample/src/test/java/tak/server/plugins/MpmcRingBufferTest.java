@@ -0,0 +1,223 @@
+package tak.server.plugins;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MpmcRingBufferTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    @Test
+    public void capacityShouldBeRoundedUpToPowerOfTwo() {
+        assertEquals(1, new MpmcRingBuffer<String>(1, MpmcRingBuffer.WaitStrategy.PARK).capacity());
+        assertEquals(8, new MpmcRingBuffer<String>(5, MpmcRingBuffer.WaitStrategy.PARK).capacity());
+        assertEquals(1024, new MpmcRingBuffer<String>(1000, MpmcRingBuffer.WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    public void offerShouldRejectWhenFullAndKeepOrderAcrossLaps() {
+        MpmcRingBuffer<String> queue = new MpmcRingBuffer<>(4, MpmcRingBuffer.WaitStrategy.PARK);
+
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(lap + ":" + i));
+            }
+            assertFalse(queue.offer("overflow"));
+            assertEquals(4, queue.size());
+            assertEquals(0, queue.remainingCapacity());
+
+            assertEquals(lap + ":0", queue.peek());
+            List<String> elements = new ArrayList<>();
+            assertEquals(4, queue.drainTo(elements, 10));
+            assertEquals(Arrays.asList(lap + ":0", lap + ":1", lap + ":2", lap + ":3"), elements);
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void iteratorShouldReturnQueuedElementsFromHeadToTail() {
+        MpmcRingBuffer<String> queue = new MpmcRingBuffer<>(4, MpmcRingBuffer.WaitStrategy.PARK);
+        // wraps around the ring
+        queue.offer("x");
+        queue.offer("y");
+        queue.poll();
+        queue.poll();
+        queue.addAll(Arrays.asList("a", "b", "c"));
+
+        Iterator<String> iterator = queue.iterator();
+        // elements queued after the iterator was created are not returned
+        queue.offer("d");
+
+        List<String> elements = new ArrayList<>();
+        iterator.forEachRemaining(elements::add);
+        assertEquals(Arrays.asList("a", "b", "c"), elements);
+        assertTrue(queue.contains("d"));
+        assertFalse(queue.contains("x"));
+        assertEquals("[a, b, c, d]", queue.toString());
+    }
+
+    @Test
+    public void removedElementsShouldBeSkipped() {
+        MpmcRingBuffer<String> queue = new MpmcRingBuffer<>(4, MpmcRingBuffer.WaitStrategy.PARK);
+        queue.addAll(Arrays.asList("a", "b", "c", "d"));
+
+        assertTrue(queue.remove("b"));
+        assertFalse(queue.remove("b"));
+        assertTrue(queue.removeIf("a"::equals));
+        Iterator<String> iterator = queue.iterator();
+        assertEquals("c", iterator.next());
+        iterator.remove();
+
+        // removed elements keep their slots until they are polled past
+        assertFalse(queue.offer("e"));
+        assertEquals("d", queue.peek());
+        assertEquals("d", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertTrue(queue.offer("e"));
+        assertEquals(Arrays.asList("e"), new ArrayList<>(queue));
+    }
+
+    @Test
+    public void pollShouldWaitForElement() throws Exception {
+        for (MpmcRingBuffer.WaitStrategy waitStrategy : MpmcRingBuffer.WaitStrategy.values()) {
+            MpmcRingBuffer<String> queue = new MpmcRingBuffer<>(4, waitStrategy);
+            assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+            new Thread(() -> queue.offer("a")).start();
+
+            assertEquals("a", queue.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void concurrentProducersShouldDeliverEveryElementOnce() throws Exception {
+        int producers = 4;
+        int perProducer = 50000;
+        MpmcRingBuffer<Integer> queue = new MpmcRingBuffer<>(64, MpmcRingBuffer.WaitStrategy.YIELD);
+
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            new Thread(() -> {
+                try {
+                    for (int i = first; i < first + perProducer; i++) {
+                        queue.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }).start();
+        }
+
+        // each producer's elements arrive in the order it queued them
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        int[] expected = new int[producers];
+        for (int i = 0; i < producers * perProducer; i++) {
+            Integer element = queue.poll(5, TimeUnit.SECONDS);
+            int producer = element / perProducer;
+            assertTrue(element > last[producer]);
+            last[producer] = element;
+        }
+        for (int p = 0; p < producers; p++) {
+            expected[p] = (p + 1) * perProducer - 1;
+        }
+        assertArrayEquals(expected, last);
+        assertNull(queue.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void coalescePolicyShouldBeRejected() {
+        new ForwarderQueue(new MpmcRingBuffer<>(4, MpmcRingBuffer.WaitStrategy.PARK), OverflowPolicy.COALESCE, 100);
+    }
+
+    /**
+     * Producer threads hand messages to one consumer through each queue, as the threads calling onMessage do with the
+     * drain thread. Reports the throughput of each queue at 1, 4 and 16 producers. Busy spinning is only measured when
+     * there is a core for every thread, otherwise the spinning threads starve the others.
+     */
+    @Test
+    public void benchmarkHandoff() throws Exception {
+        int messages = 400000;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int producers : new int[] {1, 4, 16}) {
+            StringBuilder results = new StringBuilder();
+            results.append("array blocking queue: ")
+                    .append(handoff(() -> new ArrayBlockingQueue<>(1024), producers, messages)).append(" msgs/s");
+            for (MpmcRingBuffer.WaitStrategy waitStrategy : MpmcRingBuffer.WaitStrategy.values()) {
+                if (waitStrategy == MpmcRingBuffer.WaitStrategy.BUSY_SPIN && cores <= producers) {
+                    continue;
+                }
+                results.append(", ring buffer ").append(waitStrategy).append(": ")
+                        .append(handoff(() -> new MpmcRingBuffer<>(1024, waitStrategy), producers, messages))
+                        .append(" msgs/s");
+            }
+            logger.info("{} producers, {} messages - {}", producers, messages, results);
+        }
+    }
+
+    // returns messages per second, best of three runs after a warm-up
+    private static long handoff(Supplier<BlockingQueue<Integer>> queues, int producers, int messages) throws Exception {
+        handoffOnce(queues.get(), producers, messages);
+        long best = 0;
+        for (int run = 0; run < 3; run++) {
+            best = Math.max(best, handoffOnce(queues.get(), producers, messages));
+        }
+        return best;
+    }
+
+    private static long handoffOnce(BlockingQueue<Integer> queue, int producers, int messages) throws Exception {
+        int perProducer = messages / producers;
+        CountDownLatch ready = new CountDownLatch(producers);
+        CountDownLatch go = new CountDownLatch(1);
+        Integer element = 42;
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.put(element);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }).start();
+        }
+        ready.await();
+
+        List<Integer> batch = new ArrayList<>(100);
+        long start = System.nanoTime();
+        go.countDown();
+        int received = 0;
+        while (received < perProducer * producers) {
+            Integer first = queue.poll(5, TimeUnit.SECONDS);
+            assertTrue(first != null);
+            batch.add(first);
+            queue.drainTo(batch, 99);
+            received += batch.size();
+            batch.clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        return received * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -0,0 +1,159 @@
+package tak.server.plugins;
+
+import atakmap.commoncommo.protobuf.v1.Cotevent.CotEvent;
+import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
+import atakmap.commoncommo.protobuf.v1.Takmessage.TakMessage;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityLanesTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static PriorityLanes lanes(PriorityLanes.Scheduling scheduling, int emergencyWeight, int chatWeight,
+                                       int defaultWeight) {
+        return new PriorityLanes(Arrays.asList(
+                new PriorityLanes.Lane("emergency", Arrays.asList("b-a-o-*"), emergencyWeight, queue(10000)),
+                new PriorityLanes.Lane("chat", Arrays.asList("b-t-f"), chatWeight, queue(10000)),
+                new PriorityLanes.Lane("default", List.of(), defaultWeight, queue(10000))), scheduling);
+    }
+
+    private static ForwarderQueue queue(int size) {
+        return new ForwarderQueue(new ArrayBlockingQueue<>(size), OverflowPolicy.DROP_NEWEST, 0);
+    }
+
+    @Test
+    public void messagesShouldGoToFirstMatchingLane() {
+        PriorityLanes lanes = lanes(PriorityLanes.Scheduling.STRICT, 1, 1, 1);
+
+        assertEquals("emergency", lanes.laneOf("b-a-o-tbl").getName());
+        assertEquals("chat", lanes.laneOf("b-t-f").getName());
+        assertEquals("default", lanes.laneOf("a-f-G-U-C").getName());
+        assertEquals("default", lanes.laneOf("b-a-g").getName());
+    }
+
+    @Test
+    public void strictShouldDrainHigherLanesFirst() {
+        PriorityLanes lanes = lanes(PriorityLanes.Scheduling.STRICT, 1, 1, 1);
+        for (int i = 0; i < 3; i++) {
+            lanes.offer(message("a-f-G", "sa" + i));
+        }
+        lanes.offer(message("b-t-f", "chat"));
+        lanes.offer(message("b-a-o-tbl", "911"));
+
+        assertEquals(Arrays.asList("911", "chat", "sa0"), drain(lanes, 3));
+        lanes.offer(message("b-a-o-tbl", "911-2"));
+        assertEquals(Arrays.asList("911-2", "sa1", "sa2"), drain(lanes, 10));
+    }
+
+    @Test
+    public void weightedShouldShareInProportionToWeights() {
+        PriorityLanes lanes = lanes(PriorityLanes.Scheduling.WEIGHTED, 4, 2, 1);
+        for (int i = 0; i < 100; i++) {
+            lanes.offer(message("b-a-o-tbl", "e"));
+            lanes.offer(message("b-t-f", "c"));
+            lanes.offer(message("a-f-G", "s"));
+        }
+
+        // turns carry over between calls, so taking one at a time gives the same shares
+        List<String> taken = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            taken.addAll(drain(lanes, 1));
+        }
+
+        assertEquals(40, taken.stream().filter("e"::equals).count());
+        assertEquals(20, taken.stream().filter("c"::equals).count());
+        assertEquals(10, taken.stream().filter("s"::equals).count());
+    }
+
+    @Test
+    public void weightedShouldSkipEmptyLanes() {
+        PriorityLanes lanes = lanes(PriorityLanes.Scheduling.WEIGHTED, 4, 2, 1);
+        for (int i = 0; i < 5; i++) {
+            lanes.offer(message("a-f-G", "s" + i));
+        }
+
+        assertEquals(Arrays.asList("s0", "s1", "s2", "s3", "s4"), drain(lanes, 10));
+        assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void pollShouldWaitForMessageInAnyLane() throws Exception {
+        PriorityLanes lanes = lanes(PriorityLanes.Scheduling.STRICT, 1, 1, 1);
+        assertNull(lanes.poll(10, TimeUnit.MILLISECONDS));
+
+        new Thread(() -> lanes.offer(message("b-t-f", "chat"))).start();
+
+        Message message = lanes.poll(5, TimeUnit.SECONDS);
+        assertEquals("chat", message.getPayload().getCotEvent().getUid());
+    }
+
+    /**
+     * An emergency arrives behind a backlog of position updates, which the drain thread forwards 100 per batch. Reports
+     * how many messages are forwarded before the emergency with one FIFO and with priority lanes, and each lane's
+     * metrics.
+     */
+    @Test
+    public void benchmarkEmergencyBehindBacklog() {
+        PriorityLanes fifo = new PriorityLanes(
+                List.of(new PriorityLanes.Lane("default", List.of(), 1, queue(10000))), PriorityLanes.Scheduling.STRICT);
+        PriorityLanes strict = lanes(PriorityLanes.Scheduling.STRICT, 1, 1, 1);
+
+        long fifoAhead = forwardedBeforeEmergency(fifo);
+        long strictAhead = forwardedBeforeEmergency(strict);
+
+        logger.info("messages forwarded before the emergency - single fifo: {}, priority lanes: {}", fifoAhead,
+                strictAhead);
+        logger.info("priority lanes - {}", strict);
+        assertEquals(5000, fifoAhead);
+        assertEquals(0, strictAhead);
+        assertEquals(1, strict.getLanes().get(0).getForwarded());
+        assertTrue(strict.getLanes().get(2).getMeanWaitMs() >= strict.getLanes().get(0).getMeanWaitMs());
+    }
+
+    private static long forwardedBeforeEmergency(PriorityLanes lanes) {
+        for (int i = 0; i < 5000; i++) {
+            lanes.offer(message("a-f-G", "sa" + i));
+        }
+        lanes.offer(message("b-a-o-tbl", "911"));
+
+        long ahead = 0;
+        while (true) {
+            for (String uid : drain(lanes, 100)) {
+                if (uid.equals("911")) {
+                    drain(lanes, Integer.MAX_VALUE);
+                    return ahead;
+                }
+                ahead++;
+            }
+        }
+    }
+
+    private static List<String> drain(PriorityLanes lanes, int max) {
+        List<Message> messages = new ArrayList<>();
+        lanes.drainTo(messages, max);
+        List<String> uids = new ArrayList<>();
+        for (Message message : messages) {
+            uids.add(message.getPayload().getCotEvent().getUid());
+        }
+        return uids;
+    }
+
+    private static Message message(String type, String uid) {
+        return Message.newBuilder()
+                .setPayload(TakMessage.newBuilder().setCotEvent(CotEvent.newBuilder().setType(type).setUid(uid)))
+                .build();
+    }
+}
@@ -21,6 +21,8 @@ import atakmap.commoncommo.protobuf.v1.MessageOuterClass.Message;
 public class PeriodicSenderAndLoggingReceiverPlugin extends MessageSenderReceiverBase {
 
 	private static final ScheduledExecutorService worker = Executors.newScheduledThreadPool(1);
+
+	private static final DetailAugmenter messageCountDetail = new DetailAugmenter("messageCount");
 	private ScheduledFuture<?> future;
 
 	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -91,12 +93,7 @@ public class PeriodicSenderAndLoggingReceiverPlugin extends MessageSenderReceive
 	protected Message generateMessage(Message inboundMessage) {
 
 		messageCount += 1;
-		Message.Builder messageBuilder = inboundMessage.toBuilder();
-		String xmlDetail = messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().getXmlDetail();
-		xmlDetail += "<messageCount>" + messageCount + "</messageCount>";
-
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().clearXmlDetail();
-		messageBuilder.getPayloadBuilder().getCotEventBuilder().getDetailBuilder().setXmlDetail(xmlDetail);
+		Message.Builder messageBuilder = messageCountDetail.toBuilder(inboundMessage, messageCount);
 
 		if (callsigns != null && !callsigns.isEmpty()) {
 